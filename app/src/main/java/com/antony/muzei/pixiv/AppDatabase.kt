@@ -4,13 +4,37 @@ import android.content.Context
 import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+import com.antony.muzei.pixiv.provider.artworkCache.ArtworkAccessDao
+import com.antony.muzei.pixiv.provider.artworkCache.ArtworkAccessEntity
+import com.antony.muzei.pixiv.provider.bookmarkIndex.BookmarkCheckpointDao
+import com.antony.muzei.pixiv.provider.bookmarkIndex.BookmarkCheckpointEntity
+import com.antony.muzei.pixiv.provider.bookmarkMirror.BookmarkSyncStateEntity
+import com.antony.muzei.pixiv.provider.bookmarkMirror.MirroredBookmarkDao
+import com.antony.muzei.pixiv.provider.bookmarkMirror.MirroredBookmarkEntity
+import com.antony.muzei.pixiv.provider.candidateQueue.CandidateDao
+import com.antony.muzei.pixiv.provider.candidateQueue.CandidateEntity
+import com.antony.muzei.pixiv.provider.originalUrl.OriginalUrlDao
+import com.antony.muzei.pixiv.provider.originalUrl.OriginalUrlEntity
 import com.antony.muzei.pixiv.settings.blockArtist.BlockedArtistDao
 import com.antony.muzei.pixiv.settings.blockArtist.BlockArtistEntity
 import com.antony.muzei.pixiv.settings.deleteArtwork.DeletedArtworkIdDao
 import com.antony.muzei.pixiv.settings.deleteArtwork.DeletedArtworkIdEntity
 
 @Database(
-    entities = [DeletedArtworkIdEntity::class, BlockArtistEntity::class], version = 1, exportSchema = false
+    entities = [
+        DeletedArtworkIdEntity::class,
+        BlockArtistEntity::class,
+        OriginalUrlEntity::class,
+        CandidateEntity::class,
+        ArtworkAccessEntity::class,
+        BookmarkCheckpointEntity::class,
+        MirroredBookmarkEntity::class,
+        BookmarkSyncStateEntity::class
+    ],
+    version = 8,
+    exportSchema = false
 )
 abstract class AppDatabase : RoomDatabase() {
     companion object {
@@ -19,6 +43,93 @@ abstract class AppDatabase : RoomDatabase() {
         @Volatile
         private var INSTANCE: AppDatabase? = null
 
+        // Adds the cache of resolved original image URLs
+        private val MIGRATION_1_2 = object : Migration(1, 2) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `OriginalUrlEntity` (`illustId` INTEGER NOT NULL, " +
+                            "`originalUrl` TEXT NOT NULL, `extension` TEXT NOT NULL, `contentLength` INTEGER, " +
+                            "`lastVerified` INTEGER NOT NULL, PRIMARY KEY(`illustId`))"
+                )
+            }
+        }
+
+        // Adds the queue of filtered artworks carried over between worker runs
+        private val MIGRATION_2_3 = object : Migration(2, 3) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `CandidateEntity` (`illustId` INTEGER NOT NULL, " +
+                            "`updateMode` TEXT NOT NULL, `settingsFingerprint` TEXT NOT NULL, `title` TEXT NOT NULL, " +
+                            "`byline` TEXT NOT NULL, `artistId` INTEGER NOT NULL, `attribution` TEXT, " +
+                            "`thumbnailUrl` TEXT, `imageUrl` TEXT, `enqueuedAt` INTEGER NOT NULL, PRIMARY KEY(`illustId`))"
+                )
+            }
+        }
+
+        // Allows queued candidates to be downloaded ahead of time
+        private val MIGRATION_3_4 = object : Migration(3, 4) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE `CandidateEntity` ADD COLUMN `localUri` TEXT")
+            }
+        }
+
+        // Adds tracking of which artworks Muzei shows, used to decide what to evict from the artwork cache
+        private val MIGRATION_4_5 = object : Migration(4, 5) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `ArtworkAccessEntity` (`token` TEXT NOT NULL, " +
+                            "`lastAccessed` INTEGER NOT NULL, `accessCount` INTEGER NOT NULL, PRIMARY KEY(`token`))"
+                )
+            }
+        }
+
+        // Adds the checkpoints used to find the oldest page of bookmarks, replacing the oldestMaxBookmarkId preference
+        private val MIGRATION_5_6 = object : Migration(5, 6) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `BookmarkCheckpointEntity` (`userId` TEXT NOT NULL, " +
+                            "`maxBookmarkId` INTEGER NOT NULL, `firstIllustId` INTEGER, `nextMaxBookmarkId` INTEGER, " +
+                            "`checkedAt` INTEGER NOT NULL, PRIMARY KEY(`userId`, `maxBookmarkId`))"
+                )
+            }
+        }
+
+        // Adds the local mirror of the user's bookmarks
+        private val MIGRATION_6_7 = object : Migration(6, 7) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `MirroredBookmarkEntity` (`userId` TEXT NOT NULL, " +
+                            "`illustId` INTEGER NOT NULL, `visibility` TEXT NOT NULL, `title` TEXT NOT NULL, " +
+                            "`artistName` TEXT NOT NULL, `artistId` INTEGER NOT NULL, `imageUrl` TEXT, " +
+                            "`width` INTEGER NOT NULL, `height` INTEGER NOT NULL, `type` TEXT NOT NULL, " +
+                            "`totalView` INTEGER NOT NULL, `sanityLevel` INTEGER NOT NULL, `xRestrict` INTEGER NOT NULL, " +
+                            "`lastSeen` INTEGER NOT NULL, PRIMARY KEY(`userId`, `illustId`))"
+                )
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_MirroredBookmarkEntity_userId_visibility_lastSeen` " +
+                            "ON `MirroredBookmarkEntity` (`userId`, `visibility`, `lastSeen`)"
+                )
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `BookmarkSyncStateEntity` (`userId` TEXT NOT NULL, " +
+                            "`visibility` TEXT NOT NULL, `headSyncedAt` INTEGER NOT NULL, `passStartedAt` INTEGER, " +
+                            "`passNextUrl` TEXT, `passCompletedAt` INTEGER, PRIMARY KEY(`userId`, `visibility`))"
+                )
+            }
+        }
+
+        // Keys bookmark checkpoints by visibility as well, existing checkpoints are only a cache and are dropped
+        private val MIGRATION_7_8 = object : Migration(7, 8) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("DROP TABLE IF EXISTS `BookmarkCheckpointEntity`")
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `BookmarkCheckpointEntity` (`userId` TEXT NOT NULL, " +
+                            "`visibility` TEXT NOT NULL, `maxBookmarkId` INTEGER NOT NULL, `firstIllustId` INTEGER, " +
+                            "`nextMaxBookmarkId` INTEGER, `checkedAt` INTEGER NOT NULL, " +
+                            "PRIMARY KEY(`userId`, `visibility`, `maxBookmarkId`))"
+                )
+            }
+        }
+
         fun getInstance(context: Context): AppDatabase {
             // if the INSTANCE is not null, then return it,
             // if it is, then create the database
@@ -27,7 +138,12 @@ abstract class AppDatabase : RoomDatabase() {
                         context.applicationContext,
                         AppDatabase::class.java,
                         "word_database"
-                    ).build()
+                    )
+                    .addMigrations(
+                        MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7,
+                        MIGRATION_7_8
+                    )
+                    .build()
                 INSTANCE = instance
                 // return instance
                 instance
@@ -37,4 +153,9 @@ abstract class AppDatabase : RoomDatabase() {
 
     abstract fun deletedArtworkIdDao(): DeletedArtworkIdDao
     abstract fun blockedArtistDao(): BlockedArtistDao
+    abstract fun originalUrlDao(): OriginalUrlDao
+    abstract fun candidateDao(): CandidateDao
+    abstract fun artworkAccessDao(): ArtworkAccessDao
+    abstract fun bookmarkCheckpointDao(): BookmarkCheckpointDao
+    abstract fun mirroredBookmarkDao(): MirroredBookmarkDao
 }
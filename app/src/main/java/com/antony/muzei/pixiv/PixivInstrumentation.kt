@@ -22,6 +22,7 @@ import android.util.Log
 import androidx.preference.PreferenceManager
 import com.antony.muzei.pixiv.PixivProviderConst.*
 import com.antony.muzei.pixiv.annotation.IOThread
+import com.antony.muzei.pixiv.provider.TokenRefreshWorker
 import com.antony.muzei.pixiv.provider.exceptions.AccessTokenAcquisitionException
 import com.antony.muzei.pixiv.provider.network.PixivOauthService
 import com.antony.muzei.pixiv.provider.network.RestClient
@@ -44,10 +45,38 @@ class PixivInstrumentation {
 
         private const val TAG = "PixivInstrumentation"
 
+        private class CachedToken(val accessToken: String, val expiresAtSeconds: Long) {
+            fun isValid() = System.currentTimeMillis().div(1000) < expiresAtSeconds
+        }
+
+        // Lifetime assumed for an access token read back from SharedPreferences, whose expires_in was not stored
+        private const val DEFAULT_TOKEN_LIFETIME_SECONDS = 3600
+
+        // The access token in use, and when it stops being valid
+        // Held in memory so that authenticated requests do not each have to read SharedPreferences
+        @Volatile
+        private var cachedToken: CachedToken? = null
+
+        // Callers wanting a fresh token queue up on this lock, so only one refresh is ever in flight
+        private val refreshLock = Any()
+
+        // Incremented on every refresh attempt, successful or not, see getAccessToken()
+        @Volatile
+        private var refreshGeneration = 0L
+        private var lastRefreshFailure: AccessTokenAcquisitionException? = null
 
         @JvmStatic
         fun updateTokenLocal(context: Context, response: OAuthResponse) {
-            PreferenceManager.getDefaultSharedPreferences(context.applicationContext).edit()
+            cachedToken = CachedToken(
+                response.access_token,
+                System.currentTimeMillis().div(1000) + response.expires_in
+            )
+            TokenRefreshWorker.schedule(context, response.expires_in.toLong())
+            val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context.applicationContext)
+            if (sharedPrefs.getString("userId", "") != response.user.id) {
+                RestClient.evictHttpCache()
+            }
+            sharedPrefs.edit()
                 .apply {
                     putString(PREFERENCE_PIXIV_ACCESS_TOKEN, response.access_token)
                     putString(PREFERENCE_PIXIV_REFRESH_TOKEN, response.refresh_token)
@@ -97,18 +126,86 @@ class PixivInstrumentation {
 
     /**
      * Get pixiv access-token for requests
+     *
+     * While the cached token is valid this never blocks. Once it has expired, the first caller refreshes it
+     * and every other caller waits for that refresh to complete, then uses its result.
+     * If the refresh failed, the callers that were waiting on it fail too, rather than each trying again in turn
      */
     @IOThread
-    fun getAccessToken(context: Context): String =
-        PreferenceManager.getDefaultSharedPreferences(context.applicationContext).let { prefs ->
-            prefs.getLong(PREFERENCE_PIXIV_UPDATE_TOKEN_TIMESTAMP, 0L)
-                .takeIf { accessTokenIssueTime ->
-                    System.currentTimeMillis().div(1000) - accessTokenIssueTime < 3600
-                }
-                ?.let {
-                    prefs.getString(PREFERENCE_PIXIV_ACCESS_TOKEN, "")
+    @Throws(AccessTokenAcquisitionException::class)
+    fun getAccessToken(context: Context): String {
+        cachedToken?.takeIf { it.isValid() }?.let { return it.accessToken }
+
+        val generation = refreshGeneration
+        synchronized(refreshLock) {
+            // Another caller may have completed a refresh while this one was waiting for the lock
+            cachedToken?.takeIf { it.isValid() }?.let { return it.accessToken }
+            if (refreshGeneration != generation) {
+                lastRefreshFailure?.let { throw it }
+            }
+
+            // The first call in this process, the token stored by the previous process may still be valid
+            if (cachedToken == null) {
+                loadTokenLocal(context)?.takeIf { it.isValid() }?.let {
+                    cachedToken = it
+                    return it.accessToken
                 }
-                ?: refreshAccessToken(context)
+            }
+
+            return refreshLocked(context)
+        }
+    }
+
+    /**
+     * Called when the server rejected `staleToken`, returns the access token to retry with
+     *
+     * If another caller has already replaced `staleToken`, its replacement is returned without refreshing again
+     */
+    @IOThread
+    @Throws(AccessTokenAcquisitionException::class)
+    fun replaceAccessToken(context: Context, staleToken: String): String =
+        synchronized(refreshLock) {
+            cachedToken
+                ?.takeIf { it.accessToken != staleToken && it.isValid() }
+                ?.accessToken
+                ?: refreshLocked(context)
+        }
+
+    /**
+     * Refreshes the access token ahead of time if it expires within the next `seconds`
+     */
+    @IOThread
+    @Throws(AccessTokenAcquisitionException::class)
+    fun refreshAccessTokenIfExpiring(context: Context, seconds: Long) {
+        synchronized(refreshLock) {
+            val token = cachedToken ?: loadTokenLocal(context)?.also { cachedToken = it }
+            if (token != null && token.expiresAtSeconds - System.currentTimeMillis().div(1000) > seconds) {
+                return
+            }
+            refreshLocked(context)
+        }
+    }
+
+    // Must hold refreshLock
+    private fun refreshLocked(context: Context): String {
+        refreshGeneration++
+        return try {
+            refreshAccessToken(context).also { lastRefreshFailure = null }
+        } catch (ex: AccessTokenAcquisitionException) {
+            lastRefreshFailure = ex
+            throw ex
+        }
+    }
+
+    private fun loadTokenLocal(context: Context): CachedToken? =
+        PreferenceManager.getDefaultSharedPreferences(context.applicationContext).let { prefs ->
+            val accessToken = prefs.getString(PREFERENCE_PIXIV_ACCESS_TOKEN, "")
+                ?.takeIf { it.isNotEmpty() }
+                ?: return null
+            CachedToken(
+                accessToken,
+                prefs.getLong(PREFERENCE_PIXIV_UPDATE_TOKEN_TIMESTAMP, 0L) + DEFAULT_TOKEN_LIFETIME_SECONDS
+            )
         }
 
     /**
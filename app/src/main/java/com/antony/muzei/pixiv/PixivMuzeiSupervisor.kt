@@ -61,6 +61,24 @@ object PixivMuzeiSupervisor {
         return appInstrumentation.getAccessToken(appContext)
     }
 
+    @Throws(AccessTokenAcquisitionException::class)
+    @IOThread
+    fun replaceAccessToken(staleToken: String): String {
+        if (!start) {
+            return ""
+        }
+        return appInstrumentation.replaceAccessToken(appContext, staleToken)
+    }
+
+    @Throws(AccessTokenAcquisitionException::class)
+    @IOThread
+    fun refreshAccessTokenIfExpiring(seconds: Long) {
+        if (!start) {
+            return
+        }
+        appInstrumentation.refreshAccessTokenIfExpiring(appContext, seconds)
+    }
+
     fun broadcastLocal(intent: Intent) {
         require(intent.action?.isNotEmpty() == true)
 
@@ -36,10 +36,9 @@ public final class PixivProviderConst {
     public static final String PREFERENCE_PIXIV_ACCESS_TOKEN = "accessToken";
     public static final String PREFERENCE_PIXIV_REFRESH_TOKEN = "refreshToken";
     public static final String PREFERENCE_PIXIV_UPDATE_TOKEN_TIMESTAMP = "accessTokenIssueTime";
-    public static final String PREFERENCE_OLDEST_MAX_BOOKMARK_ID = "oldestMaxBookmarkId";
 
 
-    public static final String[] AUTH_MODES = {"follow", "bookmark", "tag_search", "artist", "recommended"};
+    public static final String[] AUTH_MODES = {"follow", "bookmark", "bookmark_all", "tag_search", "artist", "recommended", "mixed"};
     public static final String[] RANKING_MODES = {"daily", "weekly", "monthly", "rookie", "original", "male", "female"};
 
     public static final String SHARE_IMAGE_INTENT_CHOOSER_TITLE = "Share image using";
@@ -36,10 +36,9 @@ import android.webkit.WebView
 import android.webkit.WebViewClient
 import android.widget.Toast
 import androidx.activity.enableEdgeToEdge
-import androidx.preference.PreferenceManager
 import com.antony.muzei.pixiv.BuildConfig
+import com.antony.muzei.pixiv.PixivInstrumentation
 import com.antony.muzei.pixiv.PixivProviderConst
-import com.antony.muzei.pixiv.PixivProviderConst.PREFERENCE_OLDEST_MAX_BOOKMARK_ID
 import com.antony.muzei.pixiv.R
 import com.antony.muzei.pixiv.common.PixivMuzeiActivity
 import com.antony.muzei.pixiv.databinding.ActivityLoginWebviewBinding
@@ -87,31 +86,8 @@ class LoginActivityWebview : PixivMuzeiActivity(),
                     launch {
                         val oauthResponse = loginNetworkRequest(url)
 
-                        PreferenceManager.getDefaultSharedPreferences(applicationContext)
-                            .edit()
-                            .apply {
-                                putString(
-                                    PixivProviderConst.PREFERENCE_PIXIV_ACCESS_TOKEN,
-                                    oauthResponse.response.access_token
-                                )
-                                putString(
-                                    PixivProviderConst.PREFERENCE_PIXIV_REFRESH_TOKEN,
-                                    oauthResponse.response.refresh_token
-                                )
-                                putLong(
-                                    PixivProviderConst.PREFERENCE_PIXIV_UPDATE_TOKEN_TIMESTAMP,
-                                    System.currentTimeMillis().div(1000)
-                                )
-                                putLong(
-                                    PREFERENCE_OLDEST_MAX_BOOKMARK_ID,
-                                    0
-                                )
-                                oauthResponse.response.user.also { user ->
-                                    putString("userId", user.id)
-                                    putString("name", user.name)
-                                }
-                            }
-                            .apply()
+                        // Also replaces any access token of a previous login still held in memory
+                        PixivInstrumentation.updateTokenLocal(applicationContext, oauthResponse.response)
 
                         // Returns the username for immediate consumption by MainPreferenceFragment
                         val username: Intent = Intent().putExtra("username", oauthResponse.response.user.name)
@@ -0,0 +1,91 @@
+package com.antony.muzei.pixiv.provider
+
+import android.os.SystemClock
+import android.util.Log
+
+// Selects artworks from a page of candidates that satisfy every one of a set of named predicates
+//
+// Predicates are evaluated cheapest first, and evaluation of a candidate stops at the first predicate it fails,
+// so the costly checks are only made against candidates that already passed every cheap one.
+// Candidates are visited in random order, and selection stops as soon as enough matches are found,
+// rather than filtering the whole page and then picking from the survivors.
+//
+// How often each predicate ran, how often it rejected a candidate, and how long it took in total
+// are accumulated into a FilterStatistics, which may be shared between many filters over a worker run
+class ArtworkFilter<T>(private val statistics: FilterStatistics) {
+    enum class Cost {
+        // Arithmetic or lookups into in-memory data
+        CHEAP,
+
+        // Database queries, IPC, or anything that has to build a lookup table on its first call
+        EXPENSIVE
+    }
+
+    private class Predicate<T>(val name: String, val cost: Cost, val test: (T) -> Boolean)
+
+    private val predicates = mutableListOf<Predicate<T>>()
+
+    fun require(name: String, cost: Cost = Cost.CHEAP, test: (T) -> Boolean): ArtworkFilter<T> = apply {
+        predicates.add(Predicate(name, cost, test))
+    }
+
+    // Returns up to `count` randomly chosen candidates that satisfy every predicate
+    fun select(candidates: List<T>, count: Int): List<T> {
+        // sortedBy is stable, so predicates of equal cost keep the order they were added in
+        val ordered = predicates.sortedBy { it.cost }
+        return candidates.shuffled().asSequence()
+            .filter { candidate -> ordered.all { evaluate(it, candidate) } }
+            .take(count)
+            .toList()
+    }
+
+    // Whether the candidate satisfies every predicate, cheapest first
+    // Lets candidates be tested one at a time while they are still being read, see RankingContentsReader.
+    // Candidates tested here should not be passed to select() as well, or their statistics are recorded twice
+    fun matches(candidate: T): Boolean =
+        predicates.sortedBy { it.cost }.all { evaluate(it, candidate) }
+
+    private fun evaluate(predicate: Predicate<T>, candidate: T): Boolean {
+        val start = SystemClock.elapsedRealtimeNanos()
+        val passed = predicate.test(candidate)
+        statistics.record(predicate.name, passed, SystemClock.elapsedRealtimeNanos() - start)
+        return passed
+    }
+}
+
+// Per predicate counters, see ArtworkFilter
+class FilterStatistics {
+    companion object {
+        private const val LOG_TAG = "ANTONY_FILTER"
+    }
+
+    private class Counter {
+        var evaluated = 0
+        var rejected = 0
+        var nanos = 0L
+    }
+
+    private val counters = linkedMapOf<String, Counter>()
+
+    @Synchronized
+    fun record(name: String, passed: Boolean, nanos: Long) {
+        counters.getOrPut(name) { Counter() }.apply {
+            evaluated++
+            if (!passed) {
+                rejected++
+            }
+            this.nanos += nanos
+        }
+    }
+
+    // Logs every predicate, those that rejected the most candidates first
+    @Synchronized
+    fun log() {
+        counters.entries.sortedByDescending { it.value.rejected }.forEach { (name, counter) ->
+            Log.d(
+                LOG_TAG,
+                "$name: rejected ${counter.rejected} / ${counter.evaluated}, ${counter.nanos / 1000} us"
+            )
+        }
+    }
+}
@@ -3,41 +3,73 @@ package com.antony.muzei.pixiv.provider
 import com.antony.muzei.pixiv.provider.network.PixivAuthFeedJsonService
 import com.antony.muzei.pixiv.provider.network.RestClient
 import com.antony.muzei.pixiv.provider.network.moshi.Illusts
+import retrofit2.Call
+import java.io.IOException
 
 class BookmarksHelper(private val userId: String) {
+    companion object {
+        // The "restrict" a bookmark was made with
+        const val VISIBILITY_PUBLIC = "public"
+        const val VISIBILITY_PRIVATE = "private"
+    }
+
     private lateinit var illusts: Illusts
     private val service: PixivAuthFeedJsonService = RestClient.getRetrofitAuthInstance()
         .create(PixivAuthFeedJsonService::class.java)
 
     fun getNewPublicBookmarks(maxBookmarkId: String): Illusts {
         val call = service.getPublicBookmarkOffsetJson(userId, maxBookmarkId)
-        illusts = call.execute().body()!!
+        illusts = read(call)
         return illusts
     }
 
     fun getNewPrivateIllusts(maxBookmarkId: String): Illusts {
         val call = service.getPrivateBookmarkOffsetJson(userId, maxBookmarkId)
-        illusts = call.execute().body()!!
+        illusts = read(call)
         return illusts
     }
 
     fun getNewPublicBookmarks(): Illusts {
         val call = service.getPublicBookmarkJson(userId)
-        illusts = call.execute().body()!!
+        illusts = read(call)
         return illusts
     }
 
     fun getNewPrivateIllusts(): Illusts {
         val call = service.getPrivateBookmarkJson(userId)
-        illusts = call.execute().body()!!
+        illusts = read(call)
         return illusts
     }
 
+    fun getNewBookmarks(visibility: String): Illusts = when (visibility) {
+        VISIBILITY_PRIVATE -> getNewPrivateIllusts()
+        else -> getNewPublicBookmarks()
+    }
+
+    fun getNewBookmarks(visibility: String, maxBookmarkId: String): Illusts = when (visibility) {
+        VISIBILITY_PRIVATE -> getNewPrivateIllusts(maxBookmarkId)
+        else -> getNewPublicBookmarks(maxBookmarkId)
+    }
+
     fun getNextBookmarks(): Illusts {
         val call = service.getNextUrl(illusts.next_url)
-        illusts = call.execute().body()!!
+        illusts = read(call)
+        return illusts
+    }
+
+    // Carries on from a next_url stored by an earlier run
+    fun getBookmarksAt(nextUrl: String): Illusts {
+        val call = service.getNextUrl(nextUrl)
+        illusts = read(call)
         return illusts
     }
 
     fun getBookmarks() = illusts
+
+    // A failed page is surfaced as an IOException, so a mirror pass is resumed from its stored next_url next run
+    private fun read(call: Call<Illusts>): Illusts =
+        call.execute().let { response ->
+            response.body()?.takeIf { response.isSuccessful }
+                ?: throw IOException("Bookmark request failed with HTTP ${response.code()}")
+        }
 }
@@ -17,15 +17,22 @@
 package com.antony.muzei.pixiv.provider
 
 import android.content.Context
-import android.os.Environment
 import androidx.work.Worker
 import androidx.work.WorkerParameters
 import com.antony.muzei.pixiv.provider.PixivArtWorker.Companion.enqueueLoad
+import com.antony.muzei.pixiv.provider.artworkCache.ArtworkCacheEvictor
 
+// Run daily if the user has enabled the daily cache trim
+// Rather than wiping every artwork and downloading a whole new batch, only as many artworks are removed as needed
+// to bring the cache within its budget. A load is then requested to replace them
 class ClearCacheWorker(context: Context, params: WorkerParameters) : Worker(context, params) {
     override fun doWork(): Result {
-        applicationContext.getExternalFilesDir(Environment.DIRECTORY_PICTURES)?.deleteRecursively()
-        enqueueLoad(true, applicationContext)
+        // Without a budget there is nothing to trim, and no artworks to replace
+        if (WorkerSettings.get(applicationContext).cacheBudget == 0) {
+            return Result.success()
+        }
+        ArtworkCacheEvictor(applicationContext).evictToBudget()
+        enqueueLoad(false, applicationContext)
         return Result.success()
     }
 }
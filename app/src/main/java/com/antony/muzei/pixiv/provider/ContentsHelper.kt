@@ -3,8 +3,20 @@ package com.antony.muzei.pixiv.provider
 import com.antony.muzei.pixiv.provider.network.PixivRankingFeedJsonService
 import com.antony.muzei.pixiv.provider.network.RestClient
 import com.antony.muzei.pixiv.provider.network.moshi.Contents
+import com.antony.muzei.pixiv.provider.network.moshi.RankingArtwork
+import com.antony.muzei.pixiv.provider.network.moshi.RankingContentsReader
+import okhttp3.ResponseBody
+import retrofit2.Call
+import java.io.IOException
 
-class ContentsHelper(private val updateMode: String) {
+// Each page of Contents only holds the artworks that passed `accept`, and no more than `limit` of them
+// The page after the current one can be read ahead in the background with readAhead(), see PageReadAhead
+class ContentsHelper(
+    private val updateMode: String,
+    accept: (RankingArtwork) -> Boolean = { true },
+    limit: Int = Int.MAX_VALUE
+) {
+    private val reader = RankingContentsReader(accept, limit)
     private lateinit var contents: Contents
     private val service = RestClient.getRetrofitRankingInstance().create(
         PixivRankingFeedJsonService::class.java
@@ -13,28 +25,31 @@ class ContentsHelper(private val updateMode: String) {
     private lateinit var date: String
     private lateinit var prevDate: String
 
+    // A null date is the latest ranking
+    private data class Page(val number: Int, val date: String?)
+
+    private val pageReadAhead = PageReadAhead<Page, ResponseBody, Contents>(
+        { page ->
+            page.date?.let { service.getRankingJson(updateMode, page.number, it) }
+                ?: service.getRankingJson(updateMode)
+        },
+        ::read
+    )
+
     fun getNewContents(): Contents {
-        val call = service.getRankingJson(updateMode)
-        contents = call.execute().body()!!
+        pageNumber = 1
+        contents = pageReadAhead.get(Page(pageNumber, null))
         date = contents.date
         prevDate = contents.prev_date
         return contents
     }
 
     fun getNextContents(): Contents {
-        if (pageNumber != 9) {
-            pageNumber++
-            service.getRankingJson(updateMode, pageNumber, date)?.let {
-                contents = it.execute().body()!!
-            }
-
-        } else {
-            // If we for some reason cannot find enough artwork to satisfy the filter
-            // from the top 450, then we can look at the previous day's ranking
-            pageNumber = 1
-            service.getRankingJson(updateMode, pageNumber, prevDate).let {
-                contents = it.execute().body()!!
-            }
+        val page = getFollowingPage()
+        pageNumber = page.number
+        contents = pageReadAhead.get(page)
+        // Rolled over to the previous day's ranking
+        if (page.number == 1) {
             date = contents.date
             prevDate = contents.prev_date
         }
@@ -42,4 +57,25 @@ class ContentsHelper(private val updateMode: String) {
     }
 
     fun getContents() = contents
+
+    // Called once the current page is known not to hold enough artworks, so the next one is on its way
+    fun readAhead() = pageReadAhead.prefetch(getFollowingPage())
+
+    // Abandons the page being read ahead, must be called once the helper is no longer used
+    fun cancelReadAhead() = pageReadAhead.cancel()
+
+    private fun getFollowingPage(): Page =
+        if (pageNumber != 9) {
+            Page(pageNumber + 1, date)
+        } else {
+            // If we for some reason cannot find enough artwork to satisfy the filter
+            // from the top 450, then we can look at the previous day's ranking
+            Page(1, prevDate)
+        }
+
+    private fun read(call: Call<ResponseBody>): Contents =
+        call.execute().let { response ->
+            val body = response.body() ?: throw IOException("Ranking request failed with HTTP ${response.code()}")
+            body.use { reader.read(it.source()) }
+        }
 }
@@ -0,0 +1,63 @@
+package com.antony.muzei.pixiv.provider
+
+import android.util.Log
+import com.antony.muzei.pixiv.provider.exceptions.CorruptFileException
+import com.google.android.apps.muzei.api.provider.Artwork
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.supervisorScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+
+// Downloads a batch of already selected artworks concurrently
+// At most `parallelism` downloads are in flight at any one time, and no more than `perHostLimit` of those
+// may be talking to the same host
+// Artworks that could not be downloaded intact are dropped, the rest are returned in the order they were submitted
+// A failed download only drops its own artwork, the rest of the batch carries on
+class DownloadPipeline(parallelism: Int, private val perHostLimit: Int) {
+    companion object {
+        private const val LOG_TAG = "ANTONY_PIPELINE"
+    }
+
+    private val downloadPermits = Semaphore(parallelism.coerceAtLeast(1))
+    private val hostPermits = ConcurrentHashMap<String, Semaphore>()
+
+    fun <T> download(
+        candidates: List<T>,
+        hostOf: (T) -> String,
+        downloadArtwork: (T) -> Artwork
+    ): List<Artwork> = runBlocking(Dispatchers.IO) {
+        supervisorScope {
+            candidates.map { candidate ->
+                async {
+                    downloadPermits.withPermit {
+                        hostPermits.getOrPut(hostOf(candidate)) { Semaphore(perHostLimit.coerceAtLeast(1)) }
+                            .withPermit { downloadOrNull(candidate, downloadArtwork) }
+                    }
+                }
+            }.awaitAll().filterNotNull()
+        }
+    }
+
+    private fun <T> downloadOrNull(candidate: T, downloadArtwork: (T) -> Artwork): Artwork? =
+        try {
+            downloadArtwork(candidate)
+        } catch (e: CorruptFileException) {
+            Log.i(LOG_TAG, "Corrupt artwork found")
+            null
+        } catch (e: IOException) {
+            Log.w(LOG_TAG, "Could not download artwork, dropping it", e)
+            null
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: RuntimeException) {
+            // e.g. a response without a body or content type
+            Log.w(LOG_TAG, "Unexpected response while downloading artwork, dropping it", e)
+            null
+        }
+}
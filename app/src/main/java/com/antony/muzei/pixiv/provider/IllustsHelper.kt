@@ -4,7 +4,9 @@ import com.antony.muzei.pixiv.provider.network.PixivAuthFeedJsonService
 import com.antony.muzei.pixiv.provider.network.RestClient
 import com.antony.muzei.pixiv.provider.network.moshi.Illusts
 import retrofit2.Call
+import java.io.IOException
 
+// The page after the current one can be read ahead in the background with readAhead(), see PageReadAhead
 class IllustsHelper(
     private val updateMode: String,
     private val language: String = "",
@@ -14,24 +16,42 @@ class IllustsHelper(
     private lateinit var illusts: Illusts
     private val service: PixivAuthFeedJsonService = RestClient.getRetrofitAuthInstance()
         .create(PixivAuthFeedJsonService::class.java)
-    
+    private val pageReadAhead = PageReadAhead<String?, Illusts, Illusts>(
+        { service.getNextUrl(it) },
+        ::read
+    )
+
     fun getNewIllusts(): Illusts {
-        val call: Call<Illusts?> = when (updateMode) {
+        val call: Call<Illusts> = when (updateMode) {
             "follow" -> service.followJson
             "recommended" -> service.recommendedJson
             "artist" -> service.getArtistJson(artist)
             "tag_search" -> service.getTagSearchJson(language, tag)
             else -> throw IllegalStateException("Unexpected value: $updateMode")
         }
-        illusts = call.execute().body()!!
+        illusts = read(call)
         return illusts
     }
 
     fun getNextIllusts(): Illusts {
-        val call = service.getNextUrl(illusts.next_url)
-        illusts = call.execute().body()!!
+        illusts = pageReadAhead.get(illusts.next_url)
         return illusts
     }
 
     fun getIllusts() = illusts
+
+    // Called once the current page is known not to hold enough artworks, so the next one is on its way
+    fun readAhead() {
+        illusts.next_url?.let { pageReadAhead.prefetch(it) }
+    }
+
+    // Abandons the page being read ahead, must be called once the helper is no longer used
+    fun cancelReadAhead() = pageReadAhead.cancel()
+
+    // An expired token or any other failed request is surfaced as an IOException, like a network failure
+    private fun read(call: Call<Illusts>): Illusts =
+        call.execute().let { response ->
+            response.body()?.takeIf { response.isSuccessful }
+                ?: throw IOException("Feed request failed with HTTP ${response.code()}")
+        }
 }
@@ -0,0 +1,82 @@
+package com.antony.muzei.pixiv.provider
+
+import android.util.Log
+import com.antony.muzei.pixiv.provider.candidateQueue.CandidateEntity
+import java.io.IOException
+import kotlin.random.Random
+
+// One of the feeds drawn from by the "mixed" update mode, along with its share of the artworks
+// Each page is filtered and reduced to candidates as soon as it is fetched, so ranking and auth feeds can be pooled.
+// fetchNew() and fetchNext() return null once the feed has no further pages
+// Pages are not read ahead, feeds that run out are instead refilled concurrently
+//
+// Different feeds may be refilled concurrently, a single feed must not be
+class MixedFeedSource(
+    val name: String,
+    val weight: Int,
+    private val fetchNew: () -> List<CandidateEntity>?,
+    private val fetchNext: () -> List<CandidateEntity>?
+) {
+    companion object {
+        private const val LOG_TAG = "ANTONY_MIXED"
+
+        // Pages fetched from a single feed in one run, so a feed the filters reject everything from is given up on
+        private const val MAX_PAGES = 5
+
+        // Draws up to `count` candidates. The feed each one comes from is picked at random in proportion to its weight,
+        // out of the feeds that still have candidates left
+        // Candidates in excludedIds, or already drawn from another feed, are skipped
+        fun sample(sources: List<MixedFeedSource>, count: Int, excludedIds: Set<Int>): List<CandidateEntity> {
+            val sampled = mutableListOf<CandidateEntity>()
+            val sampledIds = excludedIds.toMutableSet()
+            while (sampled.size < count) {
+                val available = sources.filter { it.hasCandidates(sampledIds) }
+                if (available.isEmpty()) {
+                    break
+                }
+                var roll = Random.nextInt(available.sumOf { it.weight })
+                val source = available.first {
+                    roll -= it.weight
+                    roll < 0
+                }
+                val candidate = source.candidates.removeFirst()
+                sampled.add(candidate)
+                sampledIds.add(candidate.illustId)
+            }
+            return sampled
+        }
+    }
+
+    private val candidates = ArrayDeque<CandidateEntity>()
+    private var pages = 0
+
+    var isExhausted = false
+        private set
+
+    // Fetches the feed's next page, if every candidate from the previous one has been used up
+    fun refill(excludedIds: Set<Int>) {
+        if (isExhausted || hasCandidates(excludedIds)) {
+            return
+        }
+        try {
+            val page = if (pages == 0) fetchNew() else fetchNext()
+            pages++
+            if (page == null || pages >= MAX_PAGES) {
+                isExhausted = true
+            }
+            page?.let { candidates.addAll(it) }
+            Log.d(LOG_TAG, "$name: ${page?.size ?: 0} candidates from page $pages")
+        } catch (e: IOException) {
+            Log.w(LOG_TAG, "Could not fetch $name, leaving it out of this run", e)
+            isExhausted = true
+        }
+    }
+
+    // Drops candidates that were picked in the meantime, whether from this feed or another
+    private fun hasCandidates(excludedIds: Set<Int>): Boolean {
+        while (candidates.isNotEmpty() && excludedIds.contains(candidates.first().illustId)) {
+            candidates.removeFirst()
+        }
+        return candidates.isNotEmpty()
+    }
+}
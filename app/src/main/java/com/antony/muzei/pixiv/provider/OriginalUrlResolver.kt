@@ -0,0 +1,141 @@
+package com.antony.muzei.pixiv.provider
+
+import android.util.Log
+import android.util.LruCache
+import com.antony.muzei.pixiv.provider.originalUrl.OriginalUrlDao
+import com.antony.muzei.pixiv.provider.originalUrl.OriginalUrlEntity
+import com.antony.muzei.pixiv.util.HostManager
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.selects.select
+import kotlinx.coroutines.suspendCancellableCoroutine
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import kotlin.coroutines.resume
+
+// Works out which file extension the original resolution image of a Ranking artwork has
+// Ranking artworks only come with a thumbnail URL, and the original may be either a .jpg or a .png
+//
+// A HEAD request is sent for every candidate extension at once. The first to come back successful wins,
+// and the requests still in flight are cancelled. No image bytes are transferred while probing.
+// Results are remembered for the lifetime of the process, keyed by illust id, and are also persisted to the
+// OriginalUrlEntity table so later runs can skip probing altogether.
+// Persisted results older than REVALIDATE_AFTER_MILLIS are probed again before being relied upon
+// The thumbnail URL changes whenever an artwork is edited, so a persisted result still matching it counts as verified again
+class OriginalUrlResolver(
+    private val client: OkHttpClient,
+    private val originalUrlDao: OriginalUrlDao,
+    private val extensions: List<String>
+) {
+    companion object {
+        private const val LOG_TAG = "ANTONY_RESOLVER"
+
+        private val REVALIDATE_AFTER_MILLIS = TimeUnit.DAYS.toMillis(14)
+
+        // Rows not revalidated in this time are removed altogether
+        private val DISCARD_AFTER_MILLIS = TimeUnit.DAYS.toMillis(90)
+
+        private val resolvedExtensions = LruCache<Int, String>(512)
+    }
+
+    private enum class Probe {
+        FOUND,
+        MISSING,
+
+        // The server would not answer a HEAD request, or the request failed
+        UNKNOWN
+    }
+
+    private class ProbeResult(val extension: String, val probe: Probe, val contentLength: Long?)
+
+    // Returns the extension of the original image, e.g. ".png"
+    // Returns null if it could not be determined by probing, the caller should fall back to trying each extension in turn
+    fun resolveExtension(illustId: Int, urlNoExtension: String): String? {
+        resolvedExtensions.get(illustId)?.let {
+            Log.d(LOG_TAG, "$illustId resolved from cache to $it")
+            return it
+        }
+        originalUrlDao.getOriginalUrl(illustId)
+            ?.takeIf { System.currentTimeMillis() - it.lastVerified < REVALIDATE_AFTER_MILLIS }
+            ?.takeIf { it.originalUrl == urlNoExtension + it.extension }
+            ?.let {
+                Log.d(LOG_TAG, "$illustId resolved from database to ${it.extension}")
+                originalUrlDao.updateLastVerified(illustId, System.currentTimeMillis())
+                resolvedExtensions.put(illustId, it.extension)
+                return it.extension
+            }
+        return race(urlNoExtension)?.let { (extension, contentLength) ->
+            Log.d(LOG_TAG, "$illustId resolved to $extension")
+            resolvedExtensions.put(illustId, extension)
+            originalUrlDao.insertOriginalUrl(
+                OriginalUrlEntity(
+                    illustId,
+                    urlNoExtension + extension,
+                    extension,
+                    contentLength,
+                    System.currentTimeMillis()
+                )
+            )
+            extension
+        }
+    }
+
+    // Called when a previously resolved extension turned out to be wrong
+    fun forget(illustId: Int) {
+        resolvedExtensions.remove(illustId)
+        originalUrlDao.deleteOriginalUrl(illustId)
+    }
+
+    fun pruneStale() {
+        originalUrlDao.deleteVerifiedBefore(System.currentTimeMillis() - DISCARD_AFTER_MILLIS)
+    }
+
+    // Returns the winning extension, and the length of the image if the server declared it
+    private fun race(urlNoExtension: String): Pair<String, Long?>? = runBlocking {
+        val pending = extensions.map { extension ->
+            async { probe(extension, HostManager.get().replaceUrl(urlNoExtension + extension)) }
+        }.toMutableList()
+
+        while (pending.isNotEmpty()) {
+            val finished = select<Deferred<ProbeResult>> {
+                pending.forEach { probe -> probe.onAwait { probe } }
+            }
+            pending.remove(finished)
+            val result = finished.await()
+            if (result.probe == Probe.FOUND) {
+                pending.forEach { it.cancel() }
+                return@runBlocking result.extension to result.contentLength
+            }
+        }
+        null
+    }
+
+    private suspend fun probe(extension: String, url: String): ProbeResult =
+        suspendCancellableCoroutine { continuation ->
+            val call = client.newCall(Request.Builder().url(url).head().build())
+            continuation.invokeOnCancellation { call.cancel() }
+            call.enqueue(object : Callback {
+                override fun onFailure(call: Call, e: IOException) {
+                    continuation.resume(ProbeResult(extension, Probe.UNKNOWN, null))
+                }
+
+                override fun onResponse(call: Call, response: Response) {
+                    response.close()
+                    val probe = when {
+                        response.isSuccessful -> Probe.FOUND
+                        response.code == 404 -> Probe.MISSING
+                        else -> Probe.UNKNOWN
+                    }
+                    continuation.resume(
+                        ProbeResult(extension, probe, response.header("Content-Length")?.toLongOrNull())
+                    )
+                }
+            })
+        }
+}
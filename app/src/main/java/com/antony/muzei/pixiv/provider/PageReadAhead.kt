@@ -0,0 +1,60 @@
+package com.antony.muzei.pixiv.provider
+
+import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.runBlocking
+import retrofit2.Call
+
+// Fetches the page after the current one in the background, while the artworks from the current one are downloaded
+// Once the current page is known to fall short, the next one has then already arrived, or is at least on its way,
+// instead of only being asked for once the downloads are over.
+//
+// Pages are identified by a key, e.g. a page number or a next_url. A page is only fetched ahead when asked for, and
+// only a single one at a time. cancel() aborts that request if it is still in flight.
+// Not thread safe, each helper owns its own PageReadAhead
+class PageReadAhead<K, R, P>(
+    private val newCall: (K) -> Call<R>,
+    private val read: (Call<R>) -> P
+) {
+    companion object {
+        private const val LOG_TAG = "ANTONY_READ_AHEAD"
+    }
+
+    private class Pending<K, P>(val key: K, val call: Call<*>, val page: Deferred<P>)
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private var pending: Pending<K, P>? = null
+
+    // Starts fetching the page for `key` in the background, replacing any other page being fetched ahead
+    fun prefetch(key: K) {
+        cancel()
+        val call = newCall(key)
+        pending = Pending(key, call, scope.async { read(call) })
+    }
+
+    // Returns the page for `key`, waiting on the background fetch if one was started for it, or fetching it now
+    // Anything the background fetch threw is rethrown here, as if the page had been fetched now
+    fun get(key: K): P {
+        val ahead = pending?.takeIf { it.key == key }
+        if (ahead == null) {
+            cancel()
+            return read(newCall(key))
+        }
+        pending = null
+        Log.d(LOG_TAG, "Page was read ahead")
+        return runBlocking { ahead.page.await() }
+    }
+
+    // Abandons the page being fetched ahead, if any
+    fun cancel() {
+        pending?.let {
+            it.call.cancel()
+            it.page.cancel()
+        }
+        pending = null
+    }
+}
@@ -31,7 +31,7 @@ import android.os.Environment
 import android.util.Log
 import androidx.core.app.RemoteActionCompat
 import androidx.core.content.FileProvider
-import androidx.preference.PreferenceManager
+import com.antony.muzei.pixiv.AppDatabase
 import com.antony.muzei.pixiv.BuildConfig
 import com.antony.muzei.pixiv.PixivMuzeiSupervisor.start
 import com.antony.muzei.pixiv.util.IntentUtils
@@ -63,8 +63,12 @@ class PixivArtProvider : MuzeiArtProvider() {
     }
 
     override fun onLoadRequested(initial: Boolean) {
-        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context!!)
-        if (sharedPrefs.getBoolean("pref_dataMode", false) && isOnMobileData()) {
+        // Artworks downloaded ahead of time are published straight away, and the buffer is then refilled in the background
+        if (PixivArtWorker.publishFromBuffer(context!!)) {
+            PixivArtWorker.enqueuePrefetch(context!!)
+            return
+        }
+        if (WorkerSettings.get(context!!).mobileDataSaver && isOnMobileData()) {
             Log.i("ANTONY_PROVIDER", "Data saver mode, stopping new artwork download")
             return
         }
@@ -89,6 +93,11 @@ class PixivArtProvider : MuzeiArtProvider() {
         val artworkPersistentUri = artwork.persistentUri
             ?: throw IOException("Require non-null persistent uri in Artwork $artwork")
 
+        // Muzei opens an artwork when it is about to show it, which decides what the cache evicts first
+        artwork.token?.let {
+            AppDatabase.getInstance(context).artworkAccessDao().recordAccess(it, System.currentTimeMillis())
+        }
+
         val inputStream = try {
             context.contentResolver.openInputStream(artworkPersistentUri)
         } catch (ex: FileNotFoundException) {
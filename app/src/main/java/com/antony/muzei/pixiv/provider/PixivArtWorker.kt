@@ -4,11 +4,11 @@ import android.content.ContentResolver
 import android.content.ContentUris
 import android.content.ContentValues
 import android.content.Context
-import android.content.SharedPreferences
 import android.media.MediaScannerConnection
 import android.net.Uri
 import android.os.Build
 import android.os.Environment
+import android.os.ParcelFileDescriptor
 import android.provider.MediaStore
 import android.util.Log
 import android.widget.Toast
@@ -22,42 +22,110 @@ import androidx.work.OneTimeWorkRequest
 import androidx.work.WorkManager
 import androidx.work.Worker
 import androidx.work.WorkerParameters
+import androidx.work.workDataOf
 import com.antony.muzei.pixiv.AppDatabase
 import com.antony.muzei.pixiv.PixivMuzeiSupervisor
 import com.antony.muzei.pixiv.PixivMuzeiSupervisor.getAccessToken
 import com.antony.muzei.pixiv.PixivProviderConst
 import com.antony.muzei.pixiv.PixivProviderConst.AUTH_MODES
 import com.antony.muzei.pixiv.R
+import com.antony.muzei.pixiv.provider.artworkCache.ArtworkCacheEvictor
+import com.antony.muzei.pixiv.provider.bookmarkIndex.BookmarkIndex
+import com.antony.muzei.pixiv.provider.bookmarkMirror.BookmarkMirror
+import com.antony.muzei.pixiv.provider.candidateQueue.CandidateEntity
 import com.antony.muzei.pixiv.provider.exceptions.AccessTokenAcquisitionException
 import com.antony.muzei.pixiv.provider.exceptions.CorruptFileException
 import com.antony.muzei.pixiv.provider.exceptions.FilterMatchNotFoundException
-import com.antony.muzei.pixiv.provider.network.OkHttpSingleton
-import com.antony.muzei.pixiv.provider.network.PixivImageDownloadService
 import com.antony.muzei.pixiv.provider.network.RestClient
-import com.antony.muzei.pixiv.provider.network.interceptor.ImageIntegrityInterceptor
-import com.antony.muzei.pixiv.provider.network.interceptor.StandardImageHttpHeaderInterceptor
+import com.antony.muzei.pixiv.provider.network.ResumableDownload
 import com.antony.muzei.pixiv.provider.network.moshi.AuthArtwork
 import com.antony.muzei.pixiv.provider.network.moshi.Contents
 import com.antony.muzei.pixiv.provider.network.moshi.RankingArtwork
+import com.antony.muzei.pixiv.provider.network.moshi.getOriginalImageUrl
 import com.antony.muzei.pixiv.util.HostManager
 import com.google.android.apps.muzei.api.provider.Artwork
-import com.google.android.apps.muzei.api.provider.ProviderContract
 import com.google.android.apps.muzei.api.provider.ProviderContract.getProviderClient
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import okhttp3.HttpUrl.Companion.toHttpUrl
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
 import okhttp3.MediaType
-import okhttp3.Request
-import okhttp3.ResponseBody
-import okio.buffer
-import okio.sink
 import java.io.File
-import java.io.OutputStream
+import java.io.IOException
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
 
 class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
     Worker(context, workerParams) {
+    // Images are first downloaded here, and only moved to their final location once complete
+    private val resumableDownload by lazy {
+        ResumableDownload(
+            File(applicationContext.getExternalFilesDir(null) ?: applicationContext.filesDir, "partial"),
+            RestClient.getImageHttpClient()
+        )
+    }
+
+    // Accumulates which filters rejected how many candidates over this run, logged once the run is over
+    private val filterStatistics = FilterStatistics()
+
+    private val originalUrlResolver by lazy {
+        OriginalUrlResolver(
+            RestClient.getImageHttpClient(),
+            AppDatabase.getInstance(applicationContext).originalUrlDao(),
+            IMAGE_EXTENSIONS
+        )
+    }
+
+    // Tokens of the artworks already in the provider, loaded once per run
+    private val providerTokens by lazy { ProviderTokenIndex.load(applicationContext) }
+
+    // A prefetch run downloads artworks into the candidate queue, instead of publishing them to Muzei
+    private val isPrefetch by lazy { inputData.getBoolean(KEY_PREFETCH, false) }
+
+    // Settings are read once, when first needed, and stay the same for the rest of the run
+    private val settings by lazy { WorkerSettings.get(applicationContext) }
+
+    // Every candidate downloaded by this run, with its localUri filled in, keyed by token
+    private val downloadedCandidates = ConcurrentHashMap<String, CandidateEntity>()
+
     companion object {
         const val LOG_TAG = "ANTONY_WORKER"
         private const val WORKER_TAG = "ANTONY"
-        private val IMAGE_EXTENSIONS = arrayOf(".jpg", ".png")
+        private const val PREFETCH_WORKER_TAG = "ANTONY_PREFETCH"
+        private const val KEY_PREFETCH = "prefetch"
+        private val IMAGE_EXTENSIONS = listOf(".jpg", ".png")
+
+        // Queued candidates older than this are discarded, they have likely dropped out of the feed they came from
+        private const val CANDIDATE_MAX_AGE_DAYS = 2L
+
+        // Partial downloads that have not been resumed within this time are given up on
+        private const val PARTIAL_DOWNLOAD_MAX_AGE_DAYS = 3L
+
+        // Every original image is served from the same host, this stops a high parallelism setting from
+        // opening an excessive number of connections to it
+        private const val MAX_DOWNLOADS_PER_HOST = 4
+
+        // SQLite refuses statements with more than 999 bound parameters on older Android versions
+        private const val MAX_QUERY_PARAMETERS = 500
+
+        // Bookmarks drawn from the mirror at a time, and how many times to draw before giving up on the filters
+        private const val MIRROR_SAMPLE_SIZE = 60
+        private const val MAX_MIRROR_SAMPLES = 5
+
+        // Matches read from each ranking page beyond those needed by the run, for the candidate queue
+        private const val RANKING_SPARE_MATCHES_PER_PAGE = 10
+
+        // Candidates drawn for the candidate queue at the end of a "mixed" run, so the queue keeps to the feed weights
+        private const val MIXED_SPARE_CANDIDATES = 10
+
+        // Held for the whole of a load or prefetch run, so the two never take the same queued candidate,
+        // or write to the same part file, at the same time
+        private val runLock = ReentrantLock()
 
         // Variable that tracks if the artwork cache needs to be cleared
         private var clearArtwork = false
@@ -87,93 +155,125 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
             // This can lead to race conditions if a new access token is needed
             // Additionally, we definitely do not want to spam the API
         }
-    }
 
-    /*
-    * Performs binary search to find when the oldest bookmark artwork was made.
-    * Buckle up for a fairly convoluted explanation
-    * Context: Imagine a user account with 1000 bookmarked artworks made over the past one year
-    * The Pixiv API has no way to arbitrarily navigate to any single bookmarked artwork.
-    * Instead, when making an API call we may specify a "max_bookmark_id" parameter
-    * This parameter is a timestamp of some sort. From my investigations, it appears to be a counting
-    * in centiseconds from an epoch sometime in early 2016. This doesn't seem entirely correct, but exact understanding
-    * is not strictly required
-    * The parameter is a "sliding window", and varying this parameter varies what artworks are returned in the API response
-    * As the parameter is a timestamp, adjusting it can have unpredictable results:
-    *   If the user has made many bookmarks in a short period of time, then a slight adjustment will present completely new artworks
-    *   If the user has slowly added bookmarks, then even a large adjustment will not result in a dramatically different API response
-    *
-    * Binary search parameters
-    *   Stop criteria: API response with non-empty artwork list, but also a null next_url value
-    *   Heuristics:
-    *       We are too high if the API response contains a next_url value
-    *       We are low if the API response contains no artworks.
-    *   Search space: Between maximal value and 0
-    *   Initial value: maximal value
-    *   Initial step: to halfway within the search space
-    *
-    * Binary Search Algorithm
-    *   Every step, if the stop criteria is not met, the search will move up or down by half the last step
-    *
-    *
-    * Example:
-    *   Say that the initial value is 100, and the target value is 67.5
-    *       The inital search at 100 is too high, so we go down by half the search space to 50
-    *       50 is too low, go up by half the previous step (25 = 50 / 2) to 75
-    *       75 is too high, so we go down by half the previous step (12.5 = 25 / 2) to 67.5
-    *       We have a match
-    */
-    private fun findBookmarkStartTime(userId: String) {
-        Log.d(LOG_TAG, "Looking for oldest bookmark id")
-        val bookmarks = BookmarksHelper(userId)
-        bookmarks.getNewPublicBookmarks()
-
-        var counter = 0 // Used only to output to logcat how many iterations it took find
-        var callingId = 0L // Stores the next time "window" to check
-        // Initial value of this is the latest bookmark / largest possible value
-        var step = bookmarks.getBookmarks().next_url!!.substringAfter("max_bookmark_id=").toLong()
+        // Tops up the buffer of downloaded, but not yet published, artworks
+        // Only runs while the device is charging and on an unmetered network
+        internal fun enqueuePrefetch(context: Context) {
+            if (WorkerSettings.get(context).prefetchBufferSize == 0) {
+                return
+            }
+            Constraints.Builder().apply {
+                setRequiredNetworkType(NetworkType.UNMETERED)
+                setRequiresCharging(true)
+            }.let { builder ->
+                OneTimeWorkRequest.Builder(PixivArtWorker::class.java)
+                    .setConstraints(builder.build())
+                    .setInputData(workDataOf(KEY_PREFETCH to true))
+                    .addTag(PREFETCH_WORKER_TAG)
+                    .setBackoffCriteria(BackoffPolicy.LINEAR, 5, TimeUnit.MINUTES)
+                    .build()
+            }.let { request ->
+                WorkManager.getInstance(context)
+                    .enqueueUniqueWork(PREFETCH_WORKER_TAG, ExistingWorkPolicy.KEEP, request)
+            }
+        }
 
-        while (true) {
-            counter++
-            step /= 2 //Halving the step size
-            Log.d(LOG_TAG, "Iteration $counter")
-            if (bookmarks.getBookmarks().next_url != null) {
-                // we are not looking far enough in the past
-                // we need to reduce the maxBookmarkId parameter to
-                val currentId =
-                    bookmarks.getBookmarks().next_url!!.substringAfter("max_bookmark_id=").toLong()
-                callingId = currentId - step
-            } else if (bookmarks.getBookmarks().artworks.isEmpty()) {
-                // we are looking too far in the past
-                // we need to increase the maxBookmarkId parameter to look closer to current time
-                callingId += step
-            } else {
-                // we have found the stop criteria
-                Log.d(LOG_TAG, "Found at $callingId")
-                break
+        // Publishes artworks that were downloaded ahead of time by a prefetch run, without any network access
+        // Returns false if there were none usable, in which case a regular load should be enqueued
+        internal fun publishFromBuffer(context: Context): Boolean {
+            val settings = WorkerSettings.get(context)
+            val updateMode = settings.updateMode
+            val database = AppDatabase.getInstance(context)
+            val candidateDao = database.candidateDao()
+
+            val buffered = candidateDao.getBufferedCandidates(updateMode, settings.getFingerprint(updateMode))
+            if (buffered.isEmpty()) {
+                return false
+            }
+            // Anything that may have changed since the artworks were downloaded
+            val providerTokens = ProviderTokenIndex.load(context)
+            val deletedIds = database.deletedArtworkIdDao()
+                .getDeletedArtworkIds(buffered.map { it.illustId.toString() }).toSet()
+            val blockedArtistIds = database.blockedArtistDao()
+                .getBlockedArtistIds(buffered.map { it.artistId.toString() }).toSet()
+            val (usable, unusable) = buffered.partition {
+                !providerTokens.contains(it.illustId) &&
+                        !deletedIds.contains(it.illustId.toString()) &&
+                        !blockedArtistIds.contains(it.artistId.toString()) &&
+                        isLocalImagePresent(context, Uri.parse(it.localUri))
             }
-            bookmarks.getNewPublicBookmarks(callingId.toString())
 
+            val published = usable.shuffled().take(settings.numToDownload)
+            candidateDao.deleteCandidates((unusable + published).map { it.illustId })
+            deleteBufferedImages(context, unusable, providerTokens)
+            if (published.isEmpty()) {
+                return false
+            }
+            Log.i(LOG_TAG, "Publishing ${published.size} buffered artworks")
+            getProviderClient(context, PixivArtProvider::class.java)
+                .addArtwork(published.map { it.toArtwork(Uri.parse(it.localUri)) })
+            return true
+        }
+
+        // Removes the downloaded images of candidates whose rows are being dropped, nothing else refers to them
+        // An image of an artwork that is in the provider is kept, as it is the very file Muzei shows.
+        // Images saved to external storage belong to the user's gallery, and are kept as well
+        private fun deleteBufferedImages(
+            context: Context,
+            candidates: List<CandidateEntity>,
+            providerTokens: ProviderTokenIndex
+        ) {
+            val cacheDirectory = context.getExternalFilesDir(Environment.DIRECTORY_PICTURES) ?: return
+            candidates
+                .filter { !providerTokens.contains(it.illustId) }
+                .mapNotNull { it.localUri?.let { uri -> Uri.parse(uri) } }
+                .filter { it.scheme == "file" }
+                .mapNotNull { it.path?.let { path -> File(path) } }
+                .filter { it.parentFile == cacheDirectory }
+                .forEach {
+                    Log.d(LOG_TAG, "Deleting unused buffered image ${it.name}")
+                    it.delete()
+                }
         }
-        with(PreferenceManager.getDefaultSharedPreferences(applicationContext).edit()) {
-            putLong("oldestMaxBookmarkId", callingId)
-            apply()
+
+        private fun isLocalImagePresent(context: Context, localUri: Uri): Boolean =
+            try {
+                context.contentResolver.openInputStream(localUri)?.use { true } ?: false
+            } catch (e: IOException) {
+                false
+            }
+
+        private fun CandidateEntity.toArtwork(localUri: Uri): Artwork {
+            val token = illustId.toString()
+            return Artwork.Builder()
+                .title(title)
+                .byline(byline)
+                .attribution(attribution)
+                .persistentUri(localUri)
+                .token(token)
+                .webUri(Uri.parse(PixivProviderConst.PIXIV_ARTWORK_URL + token))
+                .metadata(artistId.toString()) // Allows blocking of artist
+                .build()
         }
     }
 
+    // Copies a completed download out of the staging directory into its final storage location
+    // The staged part file is removed once it has been stored
     private fun downloadImage(
-        responseBody: ResponseBody?,
+        download: ResumableDownload.Completed,
         filename: String,
         storeInExtStorage: Boolean
     ): Uri {
-        val fileType = responseBody?.contentType()
+        val fileType = download.contentType
 
         return if (!storeInExtStorage) {
-            downloadImageInternal(responseBody, filename, fileType)
+            downloadImageInternal(download.file, filename, fileType)
         } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            downloadImageExternalApi29(responseBody, filename, fileType)
+            downloadImageExternalApi29(download.file, filename, fileType)
         } else {
-            downloadImageExternalApi28(responseBody, filename, fileType)
+            downloadImageExternalApi28(download.file, filename, fileType)
+        }.also {
+            download.file.delete()
         }
     }
 
@@ -182,7 +282,7 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
     // Option is also there to store onto an SD card if present
     @RequiresApi(Build.VERSION_CODES.Q)
     private fun downloadImageExternalApi29(
-        responseBody: ResponseBody?,
+        imageFile: File,
         filename: String,
         fileType: MediaType?,
     ): Uri {
@@ -203,6 +303,8 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
                 Environment.DIRECTORY_PICTURES + "/PixivForMuzei3"
             )
             put(MediaStore.MediaColumns.MIME_TYPE, fileType.toString())
+            // Hidden from other apps, and from getExistingImageExternalApi29(), until it has been completely written
+            put(MediaStore.MediaColumns.IS_PENDING, 1)
         }
 
         // Default option is VOLUME_EXTERNAL_PRIMARY
@@ -211,9 +313,7 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
         // Then, iterate through the array of mounted storages until we find one that is not VOLUME_EXTERNAL_PRIMARY
         // The manual iterating is required as I received a user report where VOLUME_EXTERNAL_PRIMARY was not the first entry
         var volumeName = MediaStore.VOLUME_EXTERNAL_PRIMARY
-        if (!PreferenceManager.getDefaultSharedPreferences(applicationContext)
-                .getString("pref_selectWhichExtStorage", "phone").equals("phone")
-        ) {
+        if (!settings.storeOnPhone) {
             MediaStore.getExternalVolumeNames(applicationContext).takeIf { it.size > 1 }
                 ?.let { volumeNames ->
                     for (volume in volumeNames) {
@@ -230,17 +330,23 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
             contentValues
         )!!
         // Null asserted here because if contentResolver.insert() returns a null for whatever reason, we really cannot proceed
-        // The other method using BufferedSink doesn't work all we have is a URI to sink into
+        // All we have is a URI, so the file descriptor behind it is written to
 
-        val fis = responseBody!!.byteStream()
-        val fosExternal: OutputStream? = contentResolver.openOutputStream(imageUri)
-        val buffer = ByteArray(1024 * 1024 * 10)
-        var lengthInternal: Int
-        while (fis.read(buffer).also { lengthInternal = it } > 0) {
-            fosExternal!!.write(buffer, 0, lengthInternal)
+        try {
+            ParcelFileDescriptor.AutoCloseOutputStream(contentResolver.openFileDescriptor(imageUri, "w")!!).use {
+                writeImage(imageFile, it)
+            }
+        } catch (e: Exception) {
+            // Do not leave a truncated image behind
+            contentResolver.delete(imageUri, null, null)
+            throw e
         }
-        fosExternal!!.close()
-        fis.close()
+        contentResolver.update(
+            imageUri,
+            ContentValues().apply { put(MediaStore.MediaColumns.IS_PENDING, 0) },
+            null,
+            null
+        )
 
         Log.i(LOG_TAG, "Downloaded")
         return imageUri
@@ -277,7 +383,7 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
     // External storage is described at the path below
     // This function is used when downloading on external storage on Api 28 or lower
     private fun downloadImageExternalApi28(
-        responseBody: ResponseBody?,
+        imageFile: File,
         filename: String,
         fileType: MediaType?,
     ): Uri {
@@ -305,12 +411,7 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
             }
         }
 
-        with(image.sink().buffer()) {
-            writeAll(responseBody!!.source())
-            responseBody.close()
-            close()
-
-        }
+        writeImageFile(imageFile, image)
 
         Log.i(LOG_TAG, "Downloaded")
         return Uri.fromFile(image)
@@ -320,7 +421,7 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
     // Function used to download images to internal storage
     // Internal storage in this case is /storage/emulated/0/Android/data/com.antony.muzei.pixiv/files
     private fun downloadImageInternal(
-        responseBody: ResponseBody?,
+        imageFile: File,
         filename: String,
         fileType: MediaType?,
     ): Uri {
@@ -335,17 +436,80 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
                 return Uri.fromFile(it)
             }
         }.also {
-            with(it.sink().buffer()) {
-                writeAll(responseBody!!.source())
-                responseBody.close()
-                close()
-            }
+            writeImageFile(imageFile, it)
 
             Log.i(LOG_TAG, "Downloaded")
             return Uri.fromFile(it)
         }
     }
 
+    // Moves the downloaded image into place as `image`
+    // The image only ever appears under its final name once it is complete, so an existing file can be trusted
+    // If the downloaded image is on the same volume it is simply renamed, otherwise it is copied into a temporary
+    // file next to `image`, which is then renamed
+    private fun writeImageFile(imageFile: File, image: File) {
+        if (imageFile.renameTo(image)) {
+            return
+        }
+        val temporary = File(image.parentFile, ".${image.name}.tmp")
+        try {
+            FileOutputStream(temporary).use {
+                writeImage(imageFile, it)
+                it.fd.sync()
+            }
+            if (temporary.length() != imageFile.length()) {
+                throw CorruptFileException("Copied ${temporary.length()} of ${imageFile.length()} bytes")
+            }
+            if (!temporary.renameTo(image)) {
+                throw IOException("Could not move image into place")
+            }
+        } catch (e: Exception) {
+            temporary.delete()
+            throw e
+        }
+    }
+
+    // Every storage location ends up here, whether it is a plain file or a MediaStore file descriptor
+    // The bytes are moved channel to channel, letting the kernel do the copy rather than going through a heap buffer
+    private fun writeImage(imageFile: File, output: FileOutputStream) {
+        FileInputStream(imageFile).channel.use { source ->
+            val target = output.channel
+            val size = source.size()
+            var position = 0L
+            while (position < size) {
+                val transferred = target.transferFrom(source, position, size - position)
+                if (transferred == 0L) {
+                    throw IOException("Image ended after $position of $size bytes")
+                }
+                position += transferred
+            }
+        }
+    }
+
+    // Downloads the image at `url` into the staging directory, carrying on from any earlier partial download of it
+    // A transfer that is cut off is resumed, and an image that fails verification is fetched again,
+    // up to three attempts in total. Should all attempts fail, whatever was received intact is kept for the next run
+    // Returns null if the server does not have the image
+    private fun fetchImage(url: String, token: String): ResumableDownload.Completed? {
+        val finalUrl = HostManager.get().replaceUrl(url).toHttpUrl()
+        Log.d("finalUrl", finalUrl.toString())
+        var attempt = 1
+        // Only a corrupt image is retried straight away. An IOException means the network is failing, it is left
+        // to propagate so the whole run is retried later, and resumes from the part file kept by ResumableDownload
+        while (true) {
+            val failure = try {
+                return resumableDownload.download(finalUrl, token)
+            } catch (e: CorruptFileException) {
+                e
+            }
+            Log.d(LOG_TAG, "Corrupt image, attempt $attempt / 3")
+            if (attempt == 3) {
+                throw CorruptFileException("Could not download intact image", failure)
+            }
+            attempt++
+        }
+    }
+
     private fun isDesiredPixelSize(
         width: Int,
         height: Int,
@@ -378,36 +542,37 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
         return viewCount >= settingMinimumViewCount * 500
     }
 
-    // Returns true if the artwork's ID exists int the DeletedArtwork database
-    // If the database in inaccessible for whatever reason, false is returned
-    private fun isBeenDeleted(illustId: Int): Boolean {
-        return AppDatabase.getInstance(applicationContext).deletedArtworkIdDao()
-            .isRowIsExist(illustId)
+    // Returns the subset of the passed artwork IDs that exist in the DeletedArtwork database
+    // The IDs are looked up in chunks, rather than one query per artwork, to stay under SQLite's bound parameter limit
+    private fun getDeletedArtworkIds(illustIds: Collection<Int>): Set<Int> {
+        val dao = AppDatabase.getInstance(applicationContext).deletedArtworkIdDao()
+        return illustIds.distinct().chunked(MAX_QUERY_PARAMETERS).flatMap { chunk ->
+            dao.getDeletedArtworkIds(chunk.map { it.toString() })
+        }.mapNotNull { it.toIntOrNull() }.toSet()
     }
 
-    private fun hasArtistBeenBlocked(artistId: Int): Boolean {
-        return AppDatabase.getInstance(applicationContext).blockedArtistDao().isRowIsExist(artistId)
+    // Returns the subset of the passed artist IDs that exist in the BlockedArtist database
+    private fun getBlockedArtistIds(artistIds: Collection<Int>): Set<Int> {
+        val dao = AppDatabase.getInstance(applicationContext).blockedArtistDao()
+        return artistIds.distinct().chunked(MAX_QUERY_PARAMETERS).flatMap { chunk ->
+            dao.getBlockedArtistIds(chunk.map { it.toString() })
+        }.mapNotNull { it.toIntOrNull() }.toSet()
     }
 
 
-    // Returns true if the image currently exists in the app's ContentProvider, e.g. it can be selected by Muzei at any time as the wallpaper
-    private fun isDuplicateArtwork(illustId: Int): Boolean {
-        // SQL pseudocode
-        // FROM PixivArtProvider.providerClient SELECT _id WHERE token = illustId
-        applicationContext.contentResolver.query(
-            getProviderClient(applicationContext, PixivArtProvider::class.java).contentUri,
-            arrayOf(ProviderContract.Artwork._ID),
-            "${ProviderContract.Artwork.TOKEN} = ?",
-            arrayOf(illustId.toString()),
-            null
-        )?.use {
-            val duplicateFound = it.count > 0
-            it.close()
-            return duplicateFound
-        }
-        // This is only reachable if contentResolver.query() returned null for whatever reason, and should never happen
-        return false
+    // Every deleted artwork and blocked artist, for filters that test artworks one at a time rather than a page at once
+    // Loaded once per run, as the tables are only changed from the settings screens
+    private val allDeletedArtworkIds by lazy {
+        AppDatabase.getInstance(applicationContext).deletedArtworkIdDao().getAllDeletedArtworkIds()
+            .mapNotNull { it.toIntOrNull() }.toSet()
     }
+    private val allBlockedArtistIds by lazy {
+        AppDatabase.getInstance(applicationContext).blockedArtistDao().getAllBlockedArtistIds()
+            .mapNotNull { it.toIntOrNull() }.toSet()
+    }
+
+    // Returns true if the image currently exists in the app's ContentProvider, e.g. it can be selected by Muzei at any time as the wallpaper
+    private fun isDuplicateArtwork(illustId: Int): Boolean = providerTokens.contains(illustId)
 
     /*
     Ranking images are only provided with a URL to a low resolution thumbnail
@@ -415,70 +580,86 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
 
     Secondly, the thumbnail is always a .jpg
     For the high resolution image we require a correct file extension
-    This method tests all file extensions (PNG or JPG) until a good response is received
+    The extension is first resolved without downloading anything, see OriginalUrlResolver
+    Should that not be possible, this method tests all file extensions (PNG or JPG) until a good response is received
         i.e. a response that is not a 400 class error
-    Returns a ResponseBody which contains the picture to download
+    Returns the downloaded picture
 */
-    private fun getRemoteFileExtension(thumbnailUrl: String): ResponseBody? {
+    private fun getRemoteFileExtension(thumbnailUrl: String, illustId: Int): ResumableDownload.Completed? {
         Log.i(LOG_TAG, "Getting remote file extensions")
         /* Deliberately not turned into scope function to optimize readability */
 
-        // This function is given a thumbnail URL like this
-        //  https://tc-pximg01.techorus-cdn.com/c/240x480/img-master/img/2020/02/19/00/00/39/79583564_p0_master1200.jpg
-        val transformUrl =
-            "https://i.pximg.net/img-original" + thumbnailUrl.substring(thumbnailUrl.indexOf("/img/"))
-                .replace("_master1200", "")
-        // At this point we have a url like this:
-        //  https://i.pximg.net/img-original/img/2020/02/19/00/00/39/79583564_p0.jpg
-        val transformUrlNoExtension = transformUrl.substring(0, transformUrl.length - 4)
-        // Last transformation removes the trailing file extensions
-        //  https://i.pximg.net/img-original/img/2020/02/19/00/00/39/79583564_p0
+        val token = illustId.toString()
+        val transformUrlNoExtension = getOriginalUrlNoExtension(thumbnailUrl)
 
-        for (extension in IMAGE_EXTENSIONS) {
-            val urlToTest = transformUrlNoExtension + extension
+        // If an earlier run was cut off part way through this artwork, the extension it found is used
+        val pendingUrl = resumableDownload.getPendingUrl(token)
+        val resolvedExtension = IMAGE_EXTENSIONS.firstOrNull {
+            HostManager.get().replaceUrl(transformUrlNoExtension + it).toHttpUrlOrNull()?.toString() == pendingUrl
+        } ?: originalUrlResolver.resolveExtension(illustId, transformUrlNoExtension)
 
-            val finalUrl = HostManager.get().replaceUrl(urlToTest)
-            val remoteFileExtenstionRequest: Request = Request.Builder()
-                .url(finalUrl)
-                .get()
-                .build()
-            val imageHttpClient = OkHttpSingleton.getInstance().newBuilder()
-                //.addNetworkInterceptor(NetworkTrafficLogInterceptor())
-                .addInterceptor(StandardImageHttpHeaderInterceptor())
-                .addInterceptor(ImageIntegrityInterceptor())
-                .build()
+        if (resolvedExtension != null) {
+            fetchImage(transformUrlNoExtension + resolvedExtension, token)?.let {
+                Log.i(LOG_TAG, "Getting remote file extensions completed")
+                return it
+            }
+            originalUrlResolver.forget(illustId)
+        }
 
-            imageHttpClient.newCall(remoteFileExtenstionRequest).execute().let {
-                if (it.isSuccessful) {
-                    Log.i(LOG_TAG, "Getting remote file extensions completed")
-                    return it.body
-                } else {
-                    it.close()
-                }
+        for (extension in IMAGE_EXTENSIONS.filter { it != resolvedExtension }) {
+            val urlToTest = transformUrlNoExtension + extension
+
+            fetchImage(urlToTest, token)?.let {
+                Log.i(LOG_TAG, "Getting remote file extensions completed")
+                return it
             }
         }
         // TODO don't throw a null, throw an exception
         return null
     }
 
-    // Each call to this function returns a single Ranking artwork
-    private fun buildArtworkRanking(contents: Contents): Artwork {
-        Log.i(LOG_TAG, "Getting ranking artwork")
-        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
-
-        // Filtering
-        Log.i(LOG_TAG, "Filtering ranking artwork")
-        val rankingArtwork = filterArtworkRanking(
-            contents.artworks,
-            sharedPrefs.getBoolean("pref_showManga", false),
-            sharedPrefs.getStringSet("pref_rankingFilterSelect", setOf("0")) ?: setOf("0"),
-            sharedPrefs.getString("pref_aspectRatioSelect", "0")?.toInt() ?: 0,
-            sharedPrefs.getInt("prefSlider_minViews", 0),
-            sharedPrefs.getInt("prefSlider_minimumWidth", 0),
-            sharedPrefs.getInt("prefSlider_minimumHeight", 0)
-        )
-        Log.i(LOG_TAG, "Filtering ranking artwork completed")
+    // This function is given a thumbnail URL like this
+    //  https://tc-pximg01.techorus-cdn.com/c/240x480/img-master/img/2020/02/19/00/00/39/79583564_p0_master1200.jpg
+    // and returns the original resolution URL without its file extension, like this
+    //  https://i.pximg.net/img-original/img/2020/02/19/00/00/39/79583564_p0
+    private fun getOriginalUrlNoExtension(thumbnailUrl: String): String {
+        val transformUrl =
+            "https://i.pximg.net/img-original" + thumbnailUrl.substring(thumbnailUrl.indexOf("/img/"))
+                .replace("_master1200", "")
+        return transformUrl.substring(0, transformUrl.length - 4)
+    }
 
+    // Host the image will actually be downloaded from, after any proxy substitution
+    // Used to limit how many concurrent downloads are made against a single host
+    private fun getImageHost(imageUrl: String?): String =
+        imageUrl?.let { HostManager.get().replaceUrl(it).toHttpUrlOrNull()?.host } ?: ""
+
+    private fun newDownloadPipeline() = DownloadPipeline(
+        settings.downloadParallelism,
+        MAX_DOWNLOADS_PER_HOST
+    )
+
+    // Picks up to `count` Ranking artworks from the passed Contents
+    // Contents only ever holds artworks that satisfied the user's filters as it was read, see newRankingFilter()
+    private fun selectArtworksRanking(
+        contents: Contents,
+        count: Int,
+        excludedIds: Set<Int>
+    ): List<RankingArtwork> =
+        contents.artworks.filter { !excludedIds.contains(it.illust_id) }.shuffled().take(count).also {
+            if (it.isEmpty()) {
+                throw FilterMatchNotFoundException("All ranking artworks iterated over, fetching a new Contents")
+            }
+            Log.d(LOG_TAG, "${it.size} artworks selected")
+        }
+
+    // Reduces a selected Ranking artwork to what is needed to download and publish it
+    private fun toCandidateRanking(
+        contents: Contents,
+        rankingArtwork: RankingArtwork,
+        updateMode: String,
+        settingsFingerprint: String
+    ): CandidateEntity {
         val attribution = contents.date.run {
             substring(0, 4) + "/" + substring(4, 6) + "/" + substring(6, 8) + " "
         }.plus(
@@ -494,314 +675,607 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
             }
         ).plus(rankingArtwork.rank)
 
-        val token = rankingArtwork.illust_id.toString()
-
-        // this may be null
-        // if it's null, then we have experienced an issue getting remote file extensions
-        val remoteFileExtension = getRemoteFileExtension(rankingArtwork.url)
-        val localUri = downloadImage(
-            remoteFileExtension,
-            token,
-            sharedPrefs.getBoolean("pref_storeInExtStorage", false)
+        return CandidateEntity(
+            rankingArtwork.illust_id,
+            updateMode,
+            settingsFingerprint,
+            rankingArtwork.title,
+            rankingArtwork.user_name,
+            rankingArtwork.user_id,
+            attribution,
+            rankingArtwork.url,
+            null,
+            System.currentTimeMillis()
         )
-        // TODO file size limit filter
-        // TODO handle this null
-        // what does a null mean here
-        remoteFileExtension!!.close()
-
-        Log.i(LOG_TAG, "Getting ranking artwork completed")
-        return Artwork.Builder()
-            .title(rankingArtwork.title)
-            .byline(rankingArtwork.user_name)
-            .attribution(attribution)
-            .persistentUri(localUri)
-            .token(token)
-            .webUri(Uri.parse(PixivProviderConst.PIXIV_ARTWORK_URL + token))
-            .metadata(rankingArtwork.user_id.toString()) // Allows blocking of artist
-            .build()
-    }
-
-    private fun filterArtworkRanking(
-        artworkList: List<RankingArtwork>,
-        settingShowManga: Boolean,
-        settingNsfwSelection: Set<String>,
-        settingAspectRatio: Int,
-        settingMinimumViewCount: Int,
-        settingMinimumWidth: Int,
-        settingMinimumHeight: Int
-    ): RankingArtwork {
-        val predicates: List<(RankingArtwork) -> Boolean> = listOfNotNull(
-            { !isDuplicateArtwork(it.illust_id) },
-            { isEnoughViews(it.view_count, settingMinimumViewCount) },
-            { settingShowManga || !settingShowManga && it.illust_type == 0 },
-            { isDesiredAspectRatio(it.width, it.height, settingAspectRatio) },
-            {
+    }
+
+    // Tests ranking artworks one at a time, as they are read off the page, see ContentsHelper
+    // Every predicate is answered from memory, so only artworks that are really usable count towards the page's limit
+    private fun newRankingFilter(settings: WorkerSettings): ArtworkFilter<RankingArtwork> =
+        ArtworkFilter<RankingArtwork>(filterStatistics)
+            .require("views") { isEnoughViews(it.view_count, settings.minimumViews) }
+            .require("manga") { settings.showManga || !settings.showManga && it.illust_type == 0 }
+            .require("aspectRatio") { isDesiredAspectRatio(it.width, it.height, settings.aspectRatio) }
+            .require("pixelSize") {
                 isDesiredPixelSize(
                     it.width,
                     it.height,
-                    settingMinimumHeight,
-                    settingMinimumWidth,
-                    settingAspectRatio
+                    settings.minimumHeight,
+                    settings.minimumWidth,
+                    settings.aspectRatio
                 )
-            },
-            { !isBeenDeleted(it.illust_id) },
-            { settingNsfwSelection.contains(it.illust_content_type.sexual.toString()) },
-            // There are only two NSFW levels. If user has selected both, don't bother filtering NSFW, they want everything
-            { settingNsfwSelection.size == 2 || settingNsfwSelection.contains(it.illust_content_type.sexual.toString()) },
-            { !hasArtistBeenBlocked(it.user_id) },
-        )
-
-        // Absolute black magic, something to do with Kotlin predicates, I no longer understand this
-        val filteredArtworksList = artworkList.filter { candidate ->
-            predicates.all { it(candidate) }
-        }.also {
-            if (it.isEmpty()) {
-                throw FilterMatchNotFoundException("All ranking artworks iterated over, fetching a new Contents")
             }
-            Log.d(LOG_TAG, "${it.size} artworks remaining before NSFW filtering")
-        }
-
-        return filteredArtworksList.random()
-    }
-
-    private fun buildArtworkAuth(
+            // Only levels the user selected are accepted, including when both are selected
+            .require("nsfw") { settings.rankingNsfwSelection.contains(it.illust_content_type.sexual.toString()) }
+            .require("duplicate", ArtworkFilter.Cost.EXPENSIVE) { !isDuplicateArtwork(it.illust_id) }
+            .require("deleted", ArtworkFilter.Cost.EXPENSIVE) { !allDeletedArtworkIds.contains(it.illust_id) }
+            .require("blockedArtist", ArtworkFilter.Cost.EXPENSIVE) { !allBlockedArtistIds.contains(it.user_id) }
+
+    // Picks up to `count` auth artworks from the passed list that satisfy the user's filters
+    private fun selectArtworksAuth(
         artworkList: List<AuthArtwork>,
-        isRecommended: Boolean
-    ): Artwork {
-        Log.i(LOG_TAG, "Getting auth artwork")
-        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
-
+        isRecommended: Boolean,
+        count: Int,
+        excludedIds: Set<Int>
+    ): List<AuthArtwork> {
         Log.i(LOG_TAG, "Filtering auth artwork")
-        val selectedArtwork = filterArtworkAuth(
-            artworkList,
-            sharedPrefs.getBoolean("pref_showManga", false),
-            sharedPrefs.getStringSet("pref_authFilterSelect", setOf("2")) ?: setOf("2"),
-            sharedPrefs.getString("pref_aspectRatioSelect", "0")?.toInt() ?: 0,
-            sharedPrefs.getInt("prefSlider_minViews", 0),
-            isRecommended,
-            sharedPrefs.getInt("prefSlider_minimumWidth", 0),
-            sharedPrefs.getInt("prefSlider_minimumHeight", 0)
-        )
-        Log.i(LOG_TAG, "Filtering auth artwork completed")
+        return filterArtworkAuth(artworkList, count, excludedIds, isRecommended, settings).also {
+            Log.i(LOG_TAG, "Filtering auth artwork completed")
+        }
+    }
 
-        // Variables for submitting to Muzei
-        val imageUrl: String? = if (selectedArtwork.meta_pages.isEmpty()) {
-            selectedArtwork
-                .meta_single_page
-                .original_image_url
-        } else {
-            selectedArtwork
-                .meta_pages[0]
-                .image_urls
-                .original
+    // Reduces a selected auth artwork to what is needed to download and publish it
+    private fun toCandidateAuth(
+        authArtwork: AuthArtwork,
+        updateMode: String,
+        settingsFingerprint: String
+    ): CandidateEntity = CandidateEntity(
+        authArtwork.id,
+        updateMode,
+        settingsFingerprint,
+        authArtwork.title,
+        authArtwork.user.name,
+        authArtwork.user.id,
+        null,
+        null,
+        authArtwork.getOriginalImageUrl(),
+        System.currentTimeMillis()
+    )
+
+    // Each call to this function downloads a single, already selected, artwork
+    // May be called concurrently from the download pipeline
+    private fun buildArtwork(candidate: CandidateEntity): Artwork {
+        Log.i(LOG_TAG, "Getting artwork")
+
+        val token = candidate.illustId.toString()
+        // Already downloaded by a prefetch run
+        candidate.localUri?.let { Uri.parse(it) }?.takeIf { isLocalImagePresent(applicationContext, it) }?.let {
+            Log.i(LOG_TAG, "Artwork was prefetched")
+            return candidate.toArtwork(it)
         }
 
-        val useCeuiLiSAWay = true
-        val imageDataResponse = if (useCeuiLiSAWay) {
+        val imageDownload = if (candidate.thumbnailUrl != null) {
+            // TODO file size limit filter
+            getRemoteFileExtension(candidate.thumbnailUrl, candidate.illustId)
+        } else {
             /**
-             * new code, replace url host to ip address and download
+             * replace url host to ip address and download
              * this way runs well on my phone
              */
-            val finalUrl = HostManager.get().replaceUrl(imageUrl)
-            Log.d("finalUrl", finalUrl)
-            val request: Request = Request.Builder().url(finalUrl).get().build()
-            val imageHttpClient = OkHttpSingleton.getInstance().newBuilder()
-                //.addInterceptor(NetworkTrafficLogInterceptor())
-                .addInterceptor(StandardImageHttpHeaderInterceptor())
-                .addInterceptor(ImageIntegrityInterceptor())
-                .build()
+            candidate.imageUrl?.let { fetchImage(it, token) }
+        } ?: throw CorruptFileException("Could not download image for $token")
+        val localUri = downloadImage(imageDownload, token, settings.storeInExtStorage)
 
-            imageHttpClient.newCall(request).execute().body
+        Log.i(LOG_TAG, "Getting artwork completed")
+        downloadedCandidates[token] = candidate.copy(localUri = localUri.toString())
+        return candidate.toArtwork(localUri)
+    }
 
-        } else {
-            // its your original code
-            val service =
-                RestClient.getRetrofitImageInstance().create(PixivImageDownloadService::class.java)
-            val call = service.downloadImage(imageUrl)
-            call.execute().body()
+    // Host the candidate's image will be downloaded from, see getImageHost()
+    private fun getCandidateHost(candidate: CandidateEntity): String =
+        getImageHost(candidate.imageUrl ?: candidate.thumbnailUrl?.let { getOriginalUrlNoExtension(it) })
+
+    // Downloads up to `count` candidates that were queued by earlier runs
+    // Candidates are rechecked against anything that may have changed since they were queued
+    private fun downloadQueuedCandidates(
+        pipeline: DownloadPipeline,
+        updateMode: String,
+        settingsFingerprint: String,
+        count: Int,
+        attemptedIds: MutableSet<Int>
+    ): List<Artwork> {
+        val candidateDao = AppDatabase.getInstance(applicationContext).candidateDao()
+        val cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(CANDIDATE_MAX_AGE_DAYS)
+        deleteBufferedImages(
+            applicationContext,
+            candidateDao.getStaleBufferedCandidates(updateMode, settingsFingerprint, cutoff),
+            providerTokens
+        )
+        candidateDao.deleteStaleCandidates(updateMode, settingsFingerprint, cutoff)
+        // A prefetch run has no use for candidates that are already downloaded
+        val queued = candidateDao.getCandidates(updateMode, settingsFingerprint)
+            .filter { !isPrefetch || it.localUri == null }
+        Log.i(LOG_TAG, "${queued.size} candidates queued")
+        if (queued.isEmpty()) {
+            return emptyList()
         }
 
-        val token = selectedArtwork.id.toString()
-        val localUri = downloadImage(
-            imageDataResponse, token, sharedPrefs.getBoolean("pref_storeInExtStorage", false)
-        )
-        imageDataResponse!!.close()
+        val deletedIds by lazy { getDeletedArtworkIds(queued.map { it.illustId }) }
+        val blockedArtistIds by lazy { getBlockedArtistIds(queued.map { it.artistId }) }
+        val filter = ArtworkFilter<CandidateEntity>(filterStatistics)
+            .require("alreadySelected") { !attemptedIds.contains(it.illustId) }
+            .require("duplicate", ArtworkFilter.Cost.EXPENSIVE) { !isDuplicateArtwork(it.illustId) }
+            .require("deleted", ArtworkFilter.Cost.EXPENSIVE) { !deletedIds.contains(it.illustId) }
+            .require("blockedArtist", ArtworkFilter.Cost.EXPENSIVE) { !blockedArtistIds.contains(it.artistId) }
+        // Already downloaded candidates are used before any that still need downloading
+        val (buffered, notBuffered) = queued.partition { it.localUri != null }
+        val selectedCandidates = filter.select(buffered, count).let {
+            it + filter.select(notBuffered, count - it.size)
+        }
 
-        Log.i(LOG_TAG, "Getting auth artwork completed")
-        return Artwork.Builder()
-            .title(selectedArtwork.title)
-            .byline(selectedArtwork.user.name)
-            .persistentUri(localUri)
-            .token(token)
-            .webUri(Uri.parse(PixivProviderConst.PIXIV_ARTWORK_URL + token))
-            .metadata(selectedArtwork.user.id.toString()) // Allows blocking of artist
-            .build()
+        // Removed whether or not the download succeeds, a candidate that failed once is not retried from the queue
+        candidateDao.deleteCandidates(selectedCandidates.map { it.illustId })
+        selectedCandidates.mapTo(attemptedIds) { it.illustId }
+        return pipeline.download(selectedCandidates, ::getCandidateHost, ::buildArtwork)
+    }
+
+    // Queues whatever else on the last fetched page matched the user's filters, for the next run to use
+    private fun enqueueLeftoverCandidates(selectLeftovers: () -> List<CandidateEntity>) {
+        val leftovers = try {
+            selectLeftovers()
+        } catch (e: FilterMatchNotFoundException) {
+            return
+        }
+        Log.i(LOG_TAG, "Queueing ${leftovers.size} candidates")
+        AppDatabase.getInstance(applicationContext).candidateDao().insertCandidates(leftovers)
     }
 
     private fun filterArtworkAuth(
         artworkList: List<AuthArtwork>,
-        settingShowManga: Boolean,
-        settingNsfwSelection: Set<String>,
-        settingAspectRatio: Int,
-        settingMinimumViews: Int,
+        count: Int,
+        excludedIds: Set<Int>,
         settingIsRecommended: Boolean,
-        settingMinimumWidth: Int,
-        settingMinimumHeight: Int
-    ): AuthArtwork {
-        val predicates: List<(AuthArtwork) -> Boolean> = listOfNotNull(
-            { !isDuplicateArtwork(it.id) },
-            { settingShowManga || !settingShowManga && it.type != "manga" },
-            { isDesiredAspectRatio(it.width, it.height, settingAspectRatio) },
-            {
+        settings: WorkerSettings
+    ): List<AuthArtwork> {
+        // Resolved for the whole page at once, instead of querying the database once per candidate
+        // Not resolved at all if every candidate is already rejected by a cheaper predicate
+        val deletedIds by lazy { getDeletedArtworkIds(artworkList.map { it.id }) }
+        val blockedArtistIds by lazy { getBlockedArtistIds(artworkList.map { it.user.id }) }
+
+        val filter = ArtworkFilter<AuthArtwork>(filterStatistics)
+            // Artworks already picked earlier in this run have not been added to the provider yet
+            .require("alreadySelected") { !excludedIds.contains(it.id) }
+            .require("manga") { settings.showManga || !settings.showManga && it.type != "manga" }
+            .require("aspectRatio") { isDesiredAspectRatio(it.width, it.height, settings.aspectRatio) }
+            .require("pixelSize") {
                 isDesiredPixelSize(
                     it.width,
                     it.height,
-                    settingMinimumWidth,
-                    settingMinimumHeight,
-                    settingAspectRatio
+                    settings.minimumWidth,
+                    settings.minimumHeight,
+                    settings.aspectRatio
                 )
-            },
-            { isEnoughViews(it.total_view, settingMinimumViews) },
-            { !isBeenDeleted(it.id) },
-            {
-                settingIsRecommended || settingNsfwSelection.size == 4 ||
-                        settingNsfwSelection.contains(it.sanity_level.toString()) ||
-                        (settingNsfwSelection.contains("8") && it.x_restrict == 1)
-            },
-            { !hasArtistBeenBlocked(it.user.id) }
+            }
+            .require("views") { isEnoughViews(it.total_view, settings.minimumViews) }
             // If feed mode is recommended or user has selected all possible NSFW levels, then don't bother filtering NSFW
             // Recommended only provides SFW artwork
-        )
+            .require("nsfw") {
+                settingIsRecommended || settings.authNsfwSelection.size == 4 ||
+                        settings.authNsfwSelection.contains(it.sanity_level.toString()) ||
+                        (settings.authNsfwSelection.contains("8") && it.x_restrict == 1)
+            }
+            .require("duplicate", ArtworkFilter.Cost.EXPENSIVE) { !isDuplicateArtwork(it.id) }
+            .require("deleted", ArtworkFilter.Cost.EXPENSIVE) { !deletedIds.contains(it.id) }
+            .require("blockedArtist", ArtworkFilter.Cost.EXPENSIVE) { !blockedArtistIds.contains(it.user.id) }
 
-        val filteredArtworksList = artworkList.filter { candidate ->
-            predicates.all { it(candidate) }
-        }.also {
+        return filter.select(artworkList, count).also {
             if (it.isEmpty()) {
                 throw FilterMatchNotFoundException("All auth artworks iterated over, fetching a new Illusts")
             }
-            Log.d(LOG_TAG, "${it.size} artworks remaining before NSFW filtering")
+            Log.d(LOG_TAG, "${it.size} artworks selected")
         }
-        return filteredArtworksList.random()
     }
 
-    private fun getArtworksBookmark(): List<Artwork> {
-        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
+    // "bookmark" draws from the user's public bookmarks, "bookmark_all" from their public and private bookmarks together
+    private fun getArtworksBookmark(updateMode: String, numArtworksToDownload: Int): List<Artwork> {
+        val pipeline = newDownloadPipeline()
+        val settingsFingerprint = settings.getFingerprint(updateMode)
+        val attemptedIds = mutableSetOf<Int>()
+        // Matches left over from earlier runs are used first, bookmarks are only fetched if they run out
+        val artworkList = downloadQueuedCandidates(
+            pipeline, updateMode, settingsFingerprint, numArtworksToDownload, attemptedIds
+        ).toMutableList()
+        if (artworkList.size >= numArtworksToDownload) {
+            return artworkList
+        }
 
-        // If we do not know the oldest bookmark id for the currently signed in account
-        if (sharedPrefs.getLong("oldestMaxBookmarkId", 0L) == 0L) {
-            findBookmarkStartTime(sharedPrefs.getString("userId", "")!!)
+        val userId = settings.userId
+        val database = AppDatabase.getInstance(applicationContext)
+        val visibilities = if (updateMode == "bookmark_all") {
+            listOf(BookmarksHelper.VISIBILITY_PUBLIC, BookmarksHelper.VISIBILITY_PRIVATE)
+        } else {
+            listOf(BookmarksHelper.VISIBILITY_PUBLIC)
+        }
+
+        // Once the whole library has been mirrored, bookmarks are sampled from it without any further API calls
+        // Each visibility is synced separately, and at the same time
+        val bookmarkMirrors = visibilities.map {
+            BookmarkMirror(userId, it, database.mirroredBookmarkDao(), BookmarksHelper(userId))
+        }
+        bookmarkMirrors.mapConcurrently {
+            try {
+                it.sync()
+            } catch (e: IOException) {
+                Log.w(LOG_TAG, "Could not sync bookmark mirror", e)
+            }
+        }
+        if (bookmarkMirrors.all { it.isComplete() }) {
+            var sampledArtworks = emptyList<AuthArtwork>()
+            for (attempt in 1..MAX_MIRROR_SAMPLES) {
+                if (artworkList.size >= numArtworksToDownload) {
+                    break
+                }
+                sampledArtworks = BookmarkMirror.sample(
+                    database.mirroredBookmarkDao(), userId, visibilities, MIRROR_SAMPLE_SIZE
+                )
+                val selectedArtworks = try {
+                    selectArtworksAuth(
+                        sampledArtworks, false, numArtworksToDownload - artworkList.size, attemptedIds
+                    )
+                } catch (e: FilterMatchNotFoundException) {
+                    continue
+                }
+                selectedArtworks.mapTo(attemptedIds) { it.id }
+                artworkList.addAll(
+                    pipeline.download(
+                        selectedArtworks.map { toCandidateAuth(it, updateMode, settingsFingerprint) },
+                        ::getCandidateHost,
+                        ::buildArtwork
+                    )
+                )
+            }
+            enqueueLeftoverCandidates {
+                selectArtworksAuth(sampledArtworks, false, Int.MAX_VALUE, attemptedIds)
+                    .map { toCandidateAuth(it, updateMode, settingsFingerprint) }
+            }
+            return artworkList
         }
 
-        val bookmarksHelper = BookmarksHelper(sharedPrefs.getString("userId", "")!!)
+        // Until then, a random page of bookmarks is fetched for each visibility, at the same time, and pooled
+        val bookmarksHelpers = visibilities.associateWith { BookmarksHelper(userId) }
+        var bookmarkArtworks = bookmarksHelpers.entries.toList().mapConcurrently { (visibility, bookmarksHelper) ->
+            getRandomBookmarks(userId, visibility, bookmarksHelper)
+        }.flatten()
 
-        // find the lower bound
-        val oldestBookmarkId = sharedPrefs.getLong("oldestMaxBookmarkId", 0)
-        // Find the upper bound
-        // Multiply by 1.01 as a fudge factor to ensure we get the latest artwork
-        val currentBookmarkId: Long =
-            (bookmarksHelper.getNewPublicBookmarks().next_url?.substringAfter("max_bookmark_id=")!!
-                .toLong() * 1.01).toLong()
-
-        var bookmarkArtworks =
-            bookmarksHelper.getNewPublicBookmarks(
-                (oldestBookmarkId..currentBookmarkId).random().toString()
-            ).artworks
-        val artworkList = mutableListOf<Artwork>()
-
-        while (artworkList.size < sharedPrefs.getInt("prefSlider_numToDownload", 2)) {
-            val artwork: Artwork
+        while (artworkList.size < numArtworksToDownload) {
+            val selectedArtworks: List<AuthArtwork>
             try {
-                artwork = buildArtworkAuth(bookmarkArtworks, false)
+                selectedArtworks = selectArtworksAuth(
+                    bookmarkArtworks, false, numArtworksToDownload - artworkList.size, attemptedIds
+                )
             } catch (e: FilterMatchNotFoundException) {
+                val pagedHelpers = bookmarksHelpers.values.filter { it.getBookmarks().next_url != null }
+                if (pagedHelpers.isEmpty()) {
+                    Log.i(LOG_TAG, "No bookmarks left to fetch")
+                    break
+                }
                 Log.i(LOG_TAG, "Fetching new bookmarks")
-                bookmarkArtworks = bookmarksHelper.getNextBookmarks().artworks
-                continue
-            } catch (e: CorruptFileException) {
-                Log.i(LOG_TAG, "Corrupt artwork found")
+                bookmarkArtworks = pagedHelpers.mapConcurrently { it.getNextBookmarks().artworks }.flatten()
                 continue
             }
-            artworkList.add(artwork)
+            selectedArtworks.mapTo(attemptedIds) { it.id }
+            artworkList.addAll(
+                pipeline.download(
+                    selectedArtworks.map { toCandidateAuth(it, updateMode, settingsFingerprint) },
+                    ::getCandidateHost,
+                    ::buildArtwork
+                )
+            )
         }
 
+        enqueueLeftoverCandidates {
+            selectArtworksAuth(bookmarkArtworks, false, Int.MAX_VALUE, attemptedIds)
+                .map { toCandidateAuth(it, updateMode, settingsFingerprint) }
+        }
         return artworkList
     }
 
+    // Fetches a page of bookmarks of one visibility at a random max_bookmark_id
+    // bookmarksHelper is left on that page, so getNextBookmarks() carries on from it
+    private fun getRandomBookmarks(
+        userId: String,
+        visibility: String,
+        bookmarksHelper: BookmarksHelper
+    ): List<AuthArtwork> {
+        val bookmarkIndex = BookmarkIndex(
+            userId,
+            visibility,
+            AppDatabase.getInstance(applicationContext).bookmarkCheckpointDao(),
+            BookmarksHelper(userId)
+        )
+
+        // find the lower bound
+        val oldestBookmarkId = bookmarkIndex.getOldestMaxBookmarkId()
+        // Find the upper bound
+        val newestBookmarks = bookmarksHelper.getNewBookmarks(visibility)
+        val currentBookmarkId = BookmarkIndex.getNextMaxBookmarkId(newestBookmarks)
+
+        if (oldestBookmarkId == null || currentBookmarkId == null) {
+            // Every bookmark fits on the newest page
+            return newestBookmarks.artworks
+        }
+        // Multiply by 1.01 as a fudge factor to ensure we get the latest artwork
+        val maxBookmarkId =
+            (oldestBookmarkId..(currentBookmarkId * 1.01).toLong().coerceAtLeast(oldestBookmarkId)).random()
+        return bookmarksHelper.getNewBookmarks(visibility, maxBookmarkId.toString()).artworks.ifEmpty {
+            bookmarkIndex.reportEmpty(maxBookmarkId)
+            // Fetched again, so BookmarksHelper pages on from the newest bookmarks
+            bookmarksHelper.getNewBookmarks(visibility).artworks
+        }
+    }
+
+    // Runs `transform` on every element at once, for network calls that do not depend on each other
+    private fun <T, R> List<T>.mapConcurrently(transform: (T) -> R): List<R> = runBlocking(Dispatchers.IO) {
+        map { async { transform(it) } }.awaitAll()
+    }
+
     // Bookmarks artworks are handled in a separate function
     // Part of the reason is that Pixiv itself has different API surface for bookmarks
     // And must be handled accordingly
-    private fun getArtworksAuth(updateMode: String): List<Artwork> {
-        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
+    private fun getArtworksAuth(updateMode: String, numArtworksToDownload: Int): List<Artwork> {
         // Determines if any extra information is needed, and passes it along
 
         // {"follow", "bookmark", "tag_search", "artist", "recommended"};
+        val pipeline = newDownloadPipeline()
+        val settingsFingerprint = settings.getFingerprint(updateMode)
+        val attemptedIds = mutableSetOf<Int>()
+        // Matches left over from earlier runs are used first, the feed is only fetched if they run out
+        val artworkList = downloadQueuedCandidates(
+            pipeline, updateMode, settingsFingerprint, numArtworksToDownload, attemptedIds
+        ).toMutableList()
+        if (artworkList.size >= numArtworksToDownload) {
+            return artworkList
+        }
+
         val illustsHelper = when (updateMode) {
             "follow" -> IllustsHelper(updateMode)
             "recommended" -> IllustsHelper(updateMode)
-            "artist" -> IllustsHelper(updateMode, artist = sharedPrefs.getString("pref_artistId", "") ?: "")
-            "tag_search" -> IllustsHelper(
-                updateMode,
-                tag = sharedPrefs.getString("pref_tagSearch", "") ?: "",
-                language = sharedPrefs.getString("pref_tagLanguage", "") ?: ""
-            )
+            "artist" -> IllustsHelper(updateMode, artist = settings.artistId)
+            "tag_search" -> IllustsHelper(updateMode, tag = settings.tagSearch, language = settings.tagLanguage)
 
             else -> IllustsHelper("follow")
         }
         var authArtworkList = illustsHelper.getNewIllusts().artworks
-        val artworkList = mutableListOf<Artwork>()
-
-        while (artworkList.size < sharedPrefs.getInt("prefSlider_numToDownload", 2)) {
-            val artwork: Artwork
-            try {
-                artwork = buildArtworkAuth(authArtworkList, updateMode == "recommended")
-            } catch (e: FilterMatchNotFoundException) {
-                Log.i(LOG_TAG, "Fetching new bookmarks")
-                authArtworkList = illustsHelper.getNextIllusts().artworks
-                continue
-            } catch (e: CorruptFileException) {
-                Log.i(LOG_TAG, "Corrupt artwork found")
-                continue
+        try {
+            while (artworkList.size < numArtworksToDownload) {
+                val selectedArtworks: List<AuthArtwork>
+                try {
+                    selectedArtworks = selectArtworksAuth(
+                        authArtworkList,
+                        updateMode == "recommended",
+                        numArtworksToDownload - artworkList.size,
+                        attemptedIds
+                    )
+                } catch (e: FilterMatchNotFoundException) {
+                    Log.i(LOG_TAG, "Fetching new bookmarks")
+                    authArtworkList = illustsHelper.getNextIllusts().artworks
+                    continue
+                }
+                // This page will not be enough, the next one is fetched while these are downloaded
+                if (selectedArtworks.size < numArtworksToDownload - artworkList.size) {
+                    illustsHelper.readAhead()
+                }
+                selectedArtworks.mapTo(attemptedIds) { it.id }
+                artworkList.addAll(
+                    pipeline.download(
+                        selectedArtworks.map { toCandidateAuth(it, updateMode, settingsFingerprint) },
+                        ::getCandidateHost,
+                        ::buildArtwork
+                    )
+                )
             }
-            artworkList.add(artwork)
+        } finally {
+            illustsHelper.cancelReadAhead()
+        }
+
+        enqueueLeftoverCandidates {
+            selectArtworksAuth(authArtworkList, updateMode == "recommended", Int.MAX_VALUE, attemptedIds)
+                .map { toCandidateAuth(it, updateMode, settingsFingerprint) }
         }
         return artworkList
     }
 
-    private fun getArtworksRanking(updateMode: String): List<Artwork> {
-        val numArtworksToDownload =
-            PreferenceManager.getDefaultSharedPreferences(applicationContext).getInt("prefSlider_numToDownload", 2)
+    private fun getArtworksRanking(updateMode: String, numArtworksToDownload: Int): List<Artwork> {
+        val pipeline = newDownloadPipeline()
+        val settingsFingerprint = settings.getFingerprint(updateMode)
+        // Artworks that have been handed to the pipeline, successfully or not, are not selected again
+        val attemptedIds = mutableSetOf<Int>()
+        // Matches left over from earlier runs are used first, the ranking is only fetched if they run out
+        val artworkList = downloadQueuedCandidates(
+            pipeline, updateMode, settingsFingerprint, numArtworksToDownload, attemptedIds
+        ).toMutableList()
+        if (artworkList.size >= numArtworksToDownload) {
+            return artworkList
+        }
+
         // contentsHelper is stateful, stores a copy of Contents, and can fetch a new one if needed
-        val contentsHelper = ContentsHelper(updateMode)
+        // Artworks failing any of the filters, including duplicates, deleted artworks and blocked artists, are dropped
+        // while the page is read, and the page is only read until there are enough matches for this run and the queue
+        val contentsHelper = ContentsHelper(
+            updateMode,
+            newRankingFilter(settings)::matches,
+            numArtworksToDownload + RANKING_SPARE_MATCHES_PER_PAGE
+        )
         var contents = contentsHelper.getNewContents()
-        return mutableListOf<Artwork>().also {
-            while (it.size < numArtworksToDownload) {
-                val artwork: Artwork
+        try {
+            while (artworkList.size < numArtworksToDownload) {
+                val selectedArtworks: List<RankingArtwork>
                 try {
-                    artwork = buildArtworkRanking(contents)
+                    selectedArtworks =
+                        selectArtworksRanking(contents, numArtworksToDownload - artworkList.size, attemptedIds)
                 } catch (e: FilterMatchNotFoundException) {
                     Log.i(LOG_TAG, "Fetching new contents")
                     contents = contentsHelper.getNextContents()
                     continue
-                } catch (e: CorruptFileException) {
-                    Log.i(LOG_TAG, "Corrupt artwork found")
-                    continue
                 }
-                it.add(artwork)
+                // This page will not be enough, the next one is fetched while these are downloaded
+                if (selectedArtworks.size < numArtworksToDownload - artworkList.size) {
+                    contentsHelper.readAhead()
+                }
+                selectedArtworks.mapTo(attemptedIds) { artwork -> artwork.illust_id }
+                artworkList.addAll(
+                    pipeline.download(
+                        selectedArtworks.map { toCandidateRanking(contents, it, updateMode, settingsFingerprint) },
+                        ::getCandidateHost,
+                        ::buildArtwork
+                    )
+                )
+            }
+        } finally {
+            contentsHelper.cancelReadAhead()
+        }
+
+        enqueueLeftoverCandidates {
+            selectArtworksRanking(contents, Int.MAX_VALUE, attemptedIds)
+                .map { toCandidateRanking(contents, it, updateMode, settingsFingerprint) }
+        }
+        return artworkList
+    }
+
+    // Draws from several feeds at once, each contributing artworks in proportion to its weight
+    // The first page of every feed is fetched at the same time, so a run takes as long as the slowest feed
+    // rankingOnly leaves out every feed but the ranking, for when no access token could be acquired
+    private fun getArtworksMixed(numArtworksToDownload: Int, rankingOnly: Boolean): List<Artwork> {
+        val pipeline = newDownloadPipeline()
+        val settingsFingerprint = settings.getFingerprint("mixed")
+        val attemptedIds = mutableSetOf<Int>()
+        // Matches left over from earlier runs are used first, the feeds are only fetched if they run out
+        val artworkList = downloadQueuedCandidates(
+            pipeline, "mixed", settingsFingerprint, numArtworksToDownload, attemptedIds
+        ).toMutableList()
+        if (artworkList.size >= numArtworksToDownload) {
+            return artworkList
+        }
+
+        val sources = newMixedFeedSources(numArtworksToDownload, rankingOnly, settingsFingerprint, attemptedIds)
+        if (sources.isEmpty()) {
+            Log.i(LOG_TAG, "No feeds selected, falling back to the ranking")
+            return artworkList + getArtworksRanking(settings.mixedRankingMode, numArtworksToDownload - artworkList.size)
+        }
+
+        while (artworkList.size < numArtworksToDownload) {
+            // Only feeds that have run out of candidates fetch another page
+            sources.mapConcurrently { it.refill(attemptedIds) }
+            val selectedCandidates =
+                MixedFeedSource.sample(sources, numArtworksToDownload - artworkList.size, attemptedIds)
+            if (selectedCandidates.isEmpty()) {
+                if (sources.all { it.isExhausted }) {
+                    Log.i(LOG_TAG, "Every feed has run out of artworks")
+                    break
+                }
+                continue
             }
+            selectedCandidates.mapTo(attemptedIds) { it.illustId }
+            artworkList.addAll(pipeline.download(selectedCandidates, ::getCandidateHost, ::buildArtwork))
         }
+
+        enqueueLeftoverCandidates {
+            MixedFeedSource.sample(sources, MIXED_SPARE_CANDIDATES, attemptedIds)
+        }
+        return artworkList
+    }
+
+    // One MixedFeedSource per feed in WorkerSettings.mixedFeeds
+    private fun newMixedFeedSources(
+        numArtworksToDownload: Int,
+        rankingOnly: Boolean,
+        settingsFingerprint: String,
+        attemptedIds: Set<Int>
+    ): List<MixedFeedSource> = settings.mixedFeeds
+        .filterKeys { !rankingOnly || it == "ranking" }
+        .map { (name, weight) ->
+            if (name == "ranking") {
+                val contentsHelper = ContentsHelper(
+                    settings.mixedRankingMode,
+                    newRankingFilter(settings)::matches,
+                    numArtworksToDownload + RANKING_SPARE_MATCHES_PER_PAGE
+                )
+                MixedFeedSource(
+                    name,
+                    weight,
+                    { selectMixedCandidatesRanking(contentsHelper.getNewContents(), settingsFingerprint, attemptedIds) },
+                    { selectMixedCandidatesRanking(contentsHelper.getNextContents(), settingsFingerprint, attemptedIds) }
+                )
+            } else {
+                val illustsHelper = when (name) {
+                    "artist" -> IllustsHelper(name, artist = settings.artistId)
+                    "tag_search" -> IllustsHelper(name, tag = settings.tagSearch, language = settings.tagLanguage)
+                    else -> IllustsHelper(name)
+                }
+                MixedFeedSource(
+                    name,
+                    weight,
+                    {
+                        selectMixedCandidatesAuth(
+                            illustsHelper.getNewIllusts().artworks, name, settingsFingerprint, attemptedIds
+                        )
+                    },
+                    {
+                        illustsHelper.getIllusts().next_url?.let {
+                            selectMixedCandidatesAuth(
+                                illustsHelper.getNextIllusts().artworks, name, settingsFingerprint, attemptedIds
+                            )
+                        }
+                    }
+                )
+            }
+        }
+
+    private fun selectMixedCandidatesRanking(
+        contents: Contents,
+        settingsFingerprint: String,
+        excludedIds: Set<Int>
+    ): List<CandidateEntity> = try {
+        selectArtworksRanking(contents, Int.MAX_VALUE, excludedIds)
+            .map { toCandidateRanking(contents, it, "mixed", settingsFingerprint) }
+    } catch (e: FilterMatchNotFoundException) {
+        emptyList()
+    }
+
+    private fun selectMixedCandidatesAuth(
+        artworkList: List<AuthArtwork>,
+        feed: String,
+        settingsFingerprint: String,
+        excludedIds: Set<Int>
+    ): List<CandidateEntity> = try {
+        selectArtworksAuth(artworkList, feed == "recommended", Int.MAX_VALUE, excludedIds)
+            .map { toCandidateAuth(it, "mixed", settingsFingerprint) }
+    } catch (e: FilterMatchNotFoundException) {
+        emptyList()
     }
 
     // Returns a list of Artworks to Muzei
     //
-    private fun getArtworks(): List<Artwork>? {
-        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
-        var updateMode = sharedPrefs.getString("pref_updateMode", "daily") ?: "daily"
+    private fun getArtworks(numArtworksToDownload: Int): List<Artwork>? {
+        var updateMode = settings.updateMode
+        var mixedRankingOnly = false
 
         // Gets an up to date access token if required
-        if (AUTH_MODES.contains(updateMode)) {
+        if (settings.requiresAuth) {
             try {
                 getAccessToken()
             } catch (e: AccessTokenAcquisitionException) {
-                updateMode = authHandleAuthFailure(sharedPrefs) ?: return null
+                // The ranking needs no login, a mixed mode that draws from it carries on with it alone
+                if (updateMode == "mixed" && settings.mixedFeeds.containsKey("ranking")) {
+                    Log.i(LOG_TAG, "Failed to acquire access token, drawing only from the ranking")
+                    mixedRankingOnly = true
+                } else if (isPrefetch) {
+                    // A prefetch runs in the background, it must not change the user's settings or show toasts
+                    Log.i(LOG_TAG, "Failed to acquire access token, prefetch left for later")
+                    return null
+                } else {
+                    updateMode = authHandleAuthFailure() ?: return null
+                }
             }
         }
 
@@ -810,20 +1284,22 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
         // Thus two identical if statements are required
         Log.i(LOG_TAG, "Feed mode: $updateMode")
         val artworkList: List<Artwork> = when (updateMode) {
-            "bookmark" -> getArtworksBookmark()
-            in AUTH_MODES -> getArtworksAuth(updateMode)
-            else -> getArtworksRanking(updateMode)
+            "bookmark", "bookmark_all" -> getArtworksBookmark(updateMode, numArtworksToDownload)
+            "mixed" -> getArtworksMixed(numArtworksToDownload, mixedRankingOnly)
+            in AUTH_MODES -> getArtworksAuth(updateMode, numArtworksToDownload)
+            else -> getArtworksRanking(updateMode, numArtworksToDownload)
         }
         Log.i(LOG_TAG, "Submitting ${artworkList.size} artworks")
         return artworkList
     }
 
-    private fun authHandleAuthFailure(sharedPrefs: SharedPreferences): String? {
+    private fun authHandleAuthFailure(): String? {
         Log.i(LOG_TAG, "Failed to acquire access token")
-        when (sharedPrefs.getString("pref_authFailAction", "changeDaily")) {
+        when (settings.authFailAction) {
             "changeDaily" -> {
                 Log.i(LOG_TAG, "Changing mode to daily")
-                sharedPrefs.edit().putString("pref_updateMode", "daily").apply()
+                PreferenceManager.getDefaultSharedPreferences(applicationContext).edit()
+                    .putString("pref_updateMode", "daily").apply()
                 PixivMuzeiSupervisor.post(Runnable {
                     Toast.makeText(
                         applicationContext,
@@ -862,20 +1338,79 @@ class PixivArtWorker(context: Context, workerParams: WorkerParameters) :
         }
     }
 
+    // A network failure ends the run with a null result, so WorkManager retries it after the backoff delay
+    private fun getArtworksOrNull(numArtworksToDownload: Int): List<Artwork>? =
+        try {
+            getArtworks(numArtworksToDownload)
+        } catch (e: IOException) {
+            Log.w(LOG_TAG, "Network failure, retrying later", e)
+            null
+        }
+
     // Entry method, called by Muzei / Workmanager
     // Any critical errors bubble up as a null result, resulting in Muzei calling this function again later
     override fun doWork(): Result {
+        if (isPrefetch) {
+            // A prefetch gives way to a load, the load enqueues another prefetch once it is done
+            if (!runLock.tryLock()) {
+                Log.i(LOG_TAG, "A load is running, prefetch left for later")
+                return Result.success()
+            }
+        } else {
+            // A pending prefetch is cancelled. One already running only downloads a few artworks, this load waits for it
+            WorkManager.getInstance(applicationContext).cancelUniqueWork(PREFETCH_WORKER_TAG)
+            runLock.lock()
+        }
+        try {
+            return doWorkLocked()
+        } finally {
+            runLock.unlock()
+        }
+    }
+
+    private fun doWorkLocked(): Result {
         Log.i(LOG_TAG, "Starting work")
+        resumableDownload.pruneStale(TimeUnit.DAYS.toMillis(PARTIAL_DOWNLOAD_MAX_AGE_DAYS))
+        originalUrlResolver.pruneStale()
+        if (isPrefetch) {
+            return doPrefetch()
+        }
+
         with(getProviderClient(applicationContext, PixivArtProvider::class.java)) {
-            val artworks = getArtworks() ?: return Result.retry()
+            val artworks = getArtworksOrNull(settings.numToDownload)
+                .also { filterStatistics.log() } ?: return Result.retry()
             if (clearArtwork) {
                 clearArtwork = false
                 setArtwork(artworks)
             } else {
                 addArtwork(artworks)
             }
+            providerTokens.add(artworks.mapNotNull { it.token })
         }
+        ArtworkCacheEvictor(applicationContext).evictToBudget()
+        // Whatever buffered artworks this run used are replaced at the next opportunity
+        enqueuePrefetch(applicationContext)
         Log.i(LOG_TAG, "Work completed")
         return Result.success()
     }
+
+    // Downloads artworks until the buffer holds as many as the user asked for
+    // They are stored in the candidate queue with their localUri, and published by publishFromBuffer()
+    private fun doPrefetch(): Result {
+        Log.i(LOG_TAG, "Starting prefetch")
+        val updateMode = settings.updateMode
+        val candidateDao = AppDatabase.getInstance(applicationContext).candidateDao()
+
+        val missing = settings.prefetchBufferSize -
+                candidateDao.countBufferedCandidates(updateMode, settings.getFingerprint(updateMode))
+        if (missing <= 0) {
+            Log.i(LOG_TAG, "Buffer is full")
+            return Result.success()
+        }
+
+        val artworks = getArtworksOrNull(missing).also { filterStatistics.log() } ?: return Result.retry()
+        candidateDao.insertBufferedCandidates(artworks.mapNotNull { downloadedCandidates[it.token] })
+        Log.i(LOG_TAG, "Prefetched ${artworks.size} artworks")
+        return Result.success()
+    }
 }
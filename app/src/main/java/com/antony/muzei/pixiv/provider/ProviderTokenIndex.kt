@@ -0,0 +1,46 @@
+package com.antony.muzei.pixiv.provider
+
+import android.content.Context
+import android.util.Log
+import android.util.SparseBooleanArray
+import com.google.android.apps.muzei.api.provider.ProviderContract
+import com.google.android.apps.muzei.api.provider.ProviderContract.getProviderClient
+
+// Holds the tokens of every artwork currently stored in PixivArtProvider
+// The provider is queried once, for the token column only, when the index is built
+// From then on duplicate checks are answered in process, instead of with one ContentResolver query per candidate
+//
+// Artworks this app adds to the provider should be recorded with add() so the index stays in step
+class ProviderTokenIndex private constructor(private val tokens: SparseBooleanArray) {
+    companion object {
+        private const val LOG_TAG = "ANTONY_TOKEN_INDEX"
+
+        fun load(context: Context): ProviderTokenIndex {
+            val tokens = SparseBooleanArray()
+            // SQL pseudocode
+            // FROM PixivArtProvider.providerClient SELECT token
+            context.contentResolver.query(
+                getProviderClient(context, PixivArtProvider::class.java).contentUri,
+                arrayOf(ProviderContract.Artwork.TOKEN),
+                null,
+                null,
+                null
+            )?.use {
+                val tokenColumn = it.getColumnIndexOrThrow(ProviderContract.Artwork.TOKEN)
+                while (it.moveToNext()) {
+                    it.getString(tokenColumn)?.toIntOrNull()?.let { token -> tokens.put(token, true) }
+                }
+            }
+            Log.d(LOG_TAG, "Indexed ${tokens.size()} artworks")
+            return ProviderTokenIndex(tokens)
+        }
+    }
+
+    @Synchronized
+    fun contains(illustId: Int): Boolean = tokens.get(illustId)
+
+    @Synchronized
+    fun add(tokens: Collection<String>) {
+        tokens.mapNotNull { it.toIntOrNull() }.forEach { this.tokens.put(it, true) }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider
+
+import android.content.Context
+import android.util.Log
+import androidx.work.BackoffPolicy
+import androidx.work.Constraints
+import androidx.work.ExistingWorkPolicy
+import androidx.work.NetworkType
+import androidx.work.OneTimeWorkRequest
+import androidx.work.WorkManager
+import androidx.work.Worker
+import androidx.work.WorkerParameters
+import com.antony.muzei.pixiv.PixivMuzeiSupervisor
+import com.antony.muzei.pixiv.provider.exceptions.AccessTokenAcquisitionException
+import java.util.concurrent.TimeUnit
+
+// Refreshes the access token shortly before it expires
+// Requests to the feed then find a valid token already in place, rather than having to wait on a refresh
+// The token is still refreshed on demand if this work is held back, e.g. while the device has no network
+// Only scheduled while an update mode that needs the token is selected, otherwise it would be kept fresh for nothing
+class TokenRefreshWorker(context: Context, params: WorkerParameters) : Worker(context, params) {
+    companion object {
+        private const val LOG_TAG = "ANTONY_TOKEN"
+        private const val WORKER_TAG = "ANTONY_TOKEN_REFRESH"
+
+        // How long before expiry the token is refreshed
+        private const val REFRESH_AHEAD_SECONDS = 300L
+
+        // Called whenever a new access token is obtained, replacing the refresh scheduled for the previous one
+        internal fun schedule(context: Context, expiresInSeconds: Long) {
+            if (!isTokenNeeded(context)) {
+                cancel(context)
+                return
+            }
+            Constraints.Builder().apply {
+                setRequiredNetworkType(NetworkType.CONNECTED)
+            }.let { builder ->
+                OneTimeWorkRequest.Builder(TokenRefreshWorker::class.java)
+                    .setConstraints(builder.build())
+                    .setInitialDelay((expiresInSeconds - REFRESH_AHEAD_SECONDS).coerceAtLeast(0), TimeUnit.SECONDS)
+                    .addTag(WORKER_TAG)
+                    .setBackoffCriteria(BackoffPolicy.LINEAR, 1, TimeUnit.MINUTES)
+                    .build()
+            }.let { request ->
+                WorkManager.getInstance(context.applicationContext)
+                    .enqueueUniqueWork(WORKER_TAG, ExistingWorkPolicy.REPLACE, request)
+            }
+        }
+
+        // Called when the user switches to an update mode that does not need the token
+        internal fun cancel(context: Context) {
+            WorkManager.getInstance(context.applicationContext).cancelUniqueWork(WORKER_TAG)
+        }
+
+        private fun isTokenNeeded(context: Context): Boolean =
+            WorkerSettings.get(context).requiresAuth
+    }
+
+    override fun doWork(): Result {
+        // The update mode may have changed since this was scheduled, the token is then left to expire
+        if (!isTokenNeeded(applicationContext)) {
+            Log.i(LOG_TAG, "Access token no longer needed, not refreshing it")
+            return Result.success()
+        }
+        return try {
+            // Margin for this work having been run early, or late
+            PixivMuzeiSupervisor.refreshAccessTokenIfExpiring(REFRESH_AHEAD_SECONDS * 2)
+            Result.success()
+        } catch (ex: AccessTokenAcquisitionException) {
+            Log.w(LOG_TAG, "Could not refresh access token ahead of expiry", ex)
+            Result.retry()
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider
+
+import android.content.Context
+import android.content.SharedPreferences
+import androidx.preference.PreferenceManager
+import com.antony.muzei.pixiv.PixivProviderConst.AUTH_MODES
+
+// The settings PixivArtWorker works against, read out of SharedPreferences in one go
+// A worker run takes one snapshot and uses it throughout, instead of looking up and parsing
+// preferences again for every page or artwork. The snapshot is shared between runs until any preference changes
+class WorkerSettings private constructor(sharedPrefs: SharedPreferences) {
+    companion object {
+        @Volatile
+        private var snapshot: WorkerSettings? = null
+
+        // Incremented on every preference change, so a snapshot read while a change was being made is not kept
+        @Volatile
+        private var generation = 0L
+
+        // SharedPreferences only holds a weak reference to its listeners, this keeps it alive
+        private val invalidator = SharedPreferences.OnSharedPreferenceChangeListener { _, _ ->
+            generation++
+            snapshot = null
+        }
+        private var listening = false
+
+        @Synchronized
+        fun get(context: Context): WorkerSettings {
+            snapshot?.let { return it }
+            val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context.applicationContext)
+            if (!listening) {
+                sharedPrefs.registerOnSharedPreferenceChangeListener(invalidator)
+                listening = true
+            }
+            val readGeneration = generation
+            return WorkerSettings(sharedPrefs).also {
+                if (generation == readGeneration) {
+                    snapshot = it
+                }
+            }
+        }
+    }
+
+    val updateMode: String = sharedPrefs.getString("pref_updateMode", "daily") ?: "daily"
+    val userId: String = sharedPrefs.getString("userId", "") ?: ""
+    val authFailAction: String = sharedPrefs.getString("pref_authFailAction", "changeDaily") ?: "changeDaily"
+
+    // Filtering
+    val showManga: Boolean = sharedPrefs.getBoolean("pref_showManga", false)
+    val rankingNsfwSelection: Set<String> =
+        sharedPrefs.getStringSet("pref_rankingFilterSelect", setOf("0"))?.toSet() ?: setOf("0")
+    val authNsfwSelection: Set<String> =
+        sharedPrefs.getStringSet("pref_authFilterSelect", setOf("2"))?.toSet() ?: setOf("2")
+    val aspectRatio: Int = sharedPrefs.getString("pref_aspectRatioSelect", "0")?.toIntOrNull() ?: 0
+    val minimumViews: Int = sharedPrefs.getInt("prefSlider_minViews", 0)
+    val minimumWidth: Int = sharedPrefs.getInt("prefSlider_minimumWidth", 0)
+    val minimumHeight: Int = sharedPrefs.getInt("prefSlider_minimumHeight", 0)
+
+    // Feed sources
+    val artistId: String = sharedPrefs.getString("pref_artistId", "") ?: ""
+    val tagSearch: String = sharedPrefs.getString("pref_tagSearch", "") ?: ""
+    val tagLanguage: String = sharedPrefs.getString("pref_tagLanguage", "") ?: ""
+
+    // Relative share of each feed drawn from by the "mixed" update mode, feeds weighted 0 are left out
+    val mixedWeights: Map<String, Int> = mapOf(
+        "follow" to sharedPrefs.getInt("prefSlider_mixedWeightFollow", 1),
+        "recommended" to sharedPrefs.getInt("prefSlider_mixedWeightRecommended", 0),
+        "ranking" to sharedPrefs.getInt("prefSlider_mixedWeightRanking", 1),
+        "tag_search" to sharedPrefs.getInt("prefSlider_mixedWeightTag", 0),
+        "artist" to sharedPrefs.getInt("prefSlider_mixedWeightArtist", 0)
+    ).filterValues { it > 0 }
+    val mixedRankingMode: String = sharedPrefs.getString("pref_mixedRankingMode", "daily") ?: "daily"
+
+    // The feeds actually drawn from, the tag and artist feeds are left out until a tag or artist is set
+    val mixedFeeds: Map<String, Int> = mixedWeights.filterKeys {
+        when (it) {
+            "tag_search" -> tagSearch.isNotEmpty()
+            "artist" -> artistId.isNotEmpty()
+            else -> true
+        }
+    }
+
+    // Whether a run needs an access token, a mixed mode drawing only from the ranking does not
+    val requiresAuth: Boolean =
+        if (updateMode == "mixed") mixedFeeds.keys.any { it != "ranking" } else AUTH_MODES.contains(updateMode)
+
+    // Downloading
+    val numToDownload: Int = sharedPrefs.getInt("prefSlider_numToDownload", 2)
+    val downloadParallelism: Int = sharedPrefs.getInt("prefSlider_downloadParallelism", 3)
+    val prefetchBufferSize: Int = sharedPrefs.getInt("prefSlider_prefetchBufferSize", 3)
+    val storeInExtStorage: Boolean = sharedPrefs.getBoolean("pref_storeInExtStorage", false)
+    val storeOnPhone: Boolean = sharedPrefs.getString("pref_selectWhichExtStorage", "phone") == "phone"
+    // Stops new artwork being downloaded over mobile data
+    val mobileDataSaver: Boolean = sharedPrefs.getBoolean("pref_dataMode", false)
+
+    // Cache
+    // Stored in units of 10 MB, zero means unlimited
+    val cacheBudget: Int = sharedPrefs.getInt("prefSlider_cacheBudget", 50)
+    val cacheEvictionPolicy: String = sharedPrefs.getString("pref_cacheEvictionPolicy", "lru") ?: "lru"
+
+    // Identifies the settings candidates are filtered against
+    // Candidates queued under different settings, or a different update mode, are discarded rather than used
+    fun getFingerprint(updateMode: String): String =
+        listOf(
+            updateMode,
+            showManga,
+            rankingNsfwSelection.sorted(),
+            authNsfwSelection.sorted(),
+            aspectRatio,
+            minimumViews,
+            minimumWidth,
+            minimumHeight,
+            artistId,
+            tagSearch,
+            tagLanguage
+        ).plus(
+            // Only the mixed mode depends on these, other modes keep their queues when they change
+            if (updateMode == "mixed") listOf(mixedWeights.toSortedMap(), mixedRankingMode) else emptyList()
+        ).joinToString("|")
+}
@@ -0,0 +1,26 @@
+package com.antony.muzei.pixiv.provider.artworkCache
+
+import androidx.room.Dao
+import androidx.room.Query
+import androidx.room.Transaction
+
+@Dao
+interface ArtworkAccessDao {
+    @Query("SELECT * FROM ArtworkAccessEntity WHERE token IN (:tokens)")
+    fun getAccesses(tokens: List<String>): List<ArtworkAccessEntity>
+
+    @Query("INSERT OR IGNORE INTO ArtworkAccessEntity (token, lastAccessed, accessCount) VALUES (:token, :time, 0)")
+    fun insertIfAbsent(token: String, time: Long)
+
+    @Query("UPDATE ArtworkAccessEntity SET lastAccessed = (:time), accessCount = accessCount + 1 WHERE token = (:token)")
+    fun incrementAccess(token: String, time: Long)
+
+    @Transaction
+    fun recordAccess(token: String, time: Long) {
+        insertIfAbsent(token, time)
+        incrementAccess(token, time)
+    }
+
+    @Query("DELETE FROM ArtworkAccessEntity WHERE token IN (:tokens)")
+    fun deleteAccesses(tokens: List<String>)
+}
@@ -0,0 +1,13 @@
+package com.antony.muzei.pixiv.provider.artworkCache
+
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+// How often, and how recently, Muzei has opened an artwork to show it
+@Entity
+data class ArtworkAccessEntity(
+        @PrimaryKey val token: String,
+        // Milliseconds since epoch
+        val lastAccessed: Long,
+        val accessCount: Int
+)
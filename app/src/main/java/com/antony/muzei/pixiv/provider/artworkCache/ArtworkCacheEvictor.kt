@@ -0,0 +1,138 @@
+package com.antony.muzei.pixiv.provider.artworkCache
+
+import android.content.Context
+import android.net.Uri
+import android.os.Environment
+import android.util.Log
+import com.antony.muzei.pixiv.AppDatabase
+import com.antony.muzei.pixiv.provider.PixivArtProvider
+import com.antony.muzei.pixiv.provider.WorkerSettings
+import com.google.android.apps.muzei.api.provider.ProviderContract
+import com.google.android.apps.muzei.api.provider.ProviderContract.getProviderClient
+import java.io.File
+
+// Keeps the artworks stored in internal storage within the byte budget the user has set
+// When over budget, artworks are removed one at a time, least valuable first, until back under it.
+// Both the image file and the artwork's row in PixivArtProvider are removed, so Muzei does not try to show it again
+//
+// "Least valuable" depends on the chosen policy:
+//  lru: the artwork Muzei last showed the longest time ago
+//  lfu: the artwork Muzei has shown the fewest times, ties broken as lru
+// Artworks Muzei has never shown count as last shown when they were added
+//
+// Artworks stored on external storage belong to the user's gallery, and are never removed
+class ArtworkCacheEvictor(private val context: Context) {
+    companion object {
+        private const val LOG_TAG = "ANTONY_EVICTOR"
+
+        // The budget setting is stored in units of 10 MB
+        private const val BUDGET_UNIT_BYTES = 10L * 1024 * 1024
+
+        // Tokens and ids are looked up and deleted in batches of this size, staying under the
+        // 999 bound variables older SQLite versions allow in one statement
+        private const val BATCH_SIZE = 500
+    }
+
+    private class CachedArtwork(
+        val id: Long,
+        val token: String,
+        val file: File,
+        val size: Long,
+        val lastAccessed: Long,
+        val accessCount: Int
+    )
+
+    fun evictToBudget() {
+        val settings = WorkerSettings.get(context)
+        val budget = settings.cacheBudget * BUDGET_UNIT_BYTES
+        // Zero means unlimited
+        if (budget == 0L) {
+            return
+        }
+        val cacheDirectory = context.getExternalFilesDir(Environment.DIRECTORY_PICTURES) ?: return
+
+        val artworks = getCachedArtworks(cacheDirectory)
+        var total = artworks.sumOf { it.size }
+        Log.i(LOG_TAG, "${artworks.size} artworks using $total of $budget bytes")
+        if (total <= budget) {
+            return
+        }
+
+        val ordered = when (settings.cacheEvictionPolicy) {
+            "lfu" -> artworks.sortedWith(compareBy({ it.accessCount }, { it.lastAccessed }))
+            else -> artworks.sortedBy { it.lastAccessed }
+        }
+        val evicted = mutableListOf<CachedArtwork>()
+        // The most valuable artwork is always kept, so Muzei is never left with nothing to show
+        for (artwork in ordered.dropLast(1)) {
+            if (total <= budget) {
+                break
+            }
+            artwork.file.delete()
+            total -= artwork.size
+            evicted.add(artwork)
+        }
+        if (evicted.isEmpty()) {
+            return
+        }
+
+        val contentUri = getProviderClient(context, PixivArtProvider::class.java).contentUri
+        evicted.chunked(BATCH_SIZE).forEach { chunk ->
+            context.contentResolver.delete(
+                contentUri,
+                "${ProviderContract.Artwork._ID} IN (${chunk.joinToString(",") { it.id.toString() }})",
+                null
+            )
+            AppDatabase.getInstance(context).artworkAccessDao().deleteAccesses(chunk.map { it.token })
+        }
+        Log.i(LOG_TAG, "Evicted ${evicted.size} artworks, now using $total bytes")
+    }
+
+    // Returns the artworks in PixivArtProvider whose image is stored within `cacheDirectory`
+    private fun getCachedArtworks(cacheDirectory: File): List<CachedArtwork> {
+        data class Row(val id: Long, val token: String, val file: File, val dateAdded: Long)
+
+        val rows = mutableListOf<Row>()
+        context.contentResolver.query(
+            getProviderClient(context, PixivArtProvider::class.java).contentUri,
+            arrayOf(
+                ProviderContract.Artwork._ID,
+                ProviderContract.Artwork.TOKEN,
+                ProviderContract.Artwork.PERSISTENT_URI,
+                ProviderContract.Artwork.DATE_ADDED
+            ),
+            null,
+            null,
+            null
+        )?.use {
+            while (it.moveToNext()) {
+                val token = it.getString(1) ?: continue
+                val uri = it.getString(2)?.let { uri -> Uri.parse(uri) } ?: continue
+                if (uri.scheme != "file") {
+                    continue
+                }
+                val file = File(uri.path ?: continue)
+                if (file.parentFile != cacheDirectory) {
+                    continue
+                }
+                rows.add(Row(it.getLong(0), token, file, it.getLong(3)))
+            }
+        }
+
+        val artworkAccessDao = AppDatabase.getInstance(context).artworkAccessDao()
+        val accesses = rows.map { it.token }.chunked(BATCH_SIZE)
+            .flatMap { artworkAccessDao.getAccesses(it) }
+            .associateBy { it.token }
+        return rows.map {
+            val access = accesses[it.token]
+            CachedArtwork(
+                it.id,
+                it.token,
+                it.file,
+                it.file.length(),
+                access?.lastAccessed ?: it.dateAdded,
+                access?.accessCount ?: 0
+            )
+        }
+    }
+}
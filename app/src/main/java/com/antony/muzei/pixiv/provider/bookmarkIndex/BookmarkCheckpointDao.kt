@@ -0,0 +1,22 @@
+package com.antony.muzei.pixiv.provider.bookmarkIndex
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface BookmarkCheckpointDao {
+    @Query("SELECT * FROM BookmarkCheckpointEntity WHERE userId = (:userId) AND visibility = (:visibility) ORDER BY maxBookmarkId")
+    fun getCheckpoints(userId: String, visibility: String): List<BookmarkCheckpointEntity>
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertCheckpoint(checkpoint: BookmarkCheckpointEntity)
+
+    @Query("DELETE FROM BookmarkCheckpointEntity WHERE userId = (:userId) AND visibility = (:visibility) AND maxBookmarkId <= (:maxBookmarkId)")
+    fun deleteCheckpointsUpTo(userId: String, visibility: String, maxBookmarkId: Long)
+
+    // Checkpoints of other, previously signed in, accounts
+    @Query("DELETE FROM BookmarkCheckpointEntity WHERE userId != (:userId)")
+    fun deleteOtherUsers(userId: String)
+}
@@ -0,0 +1,18 @@
+package com.antony.muzei.pixiv.provider.bookmarkIndex
+
+import androidx.room.Entity
+
+// What the public or private bookmarks endpoint returned for one max_bookmark_id, see BookmarkIndex
+@Entity(primaryKeys = ["userId", "visibility", "maxBookmarkId"])
+data class BookmarkCheckpointEntity(
+        val userId: String,
+        // BookmarksHelper.VISIBILITY_PUBLIC or VISIBILITY_PRIVATE, each is searched separately
+        val visibility: String,
+        val maxBookmarkId: Long,
+        // Null if no bookmarks were returned
+        val firstIllustId: Int?,
+        // The max_bookmark_id of the following page, null if this was the last page
+        val nextMaxBookmarkId: Long?,
+        // Milliseconds since epoch
+        val checkedAt: Long
+)
@@ -0,0 +1,135 @@
+package com.antony.muzei.pixiv.provider.bookmarkIndex
+
+import android.util.Log
+import com.antony.muzei.pixiv.provider.BookmarksHelper
+import com.antony.muzei.pixiv.provider.network.moshi.Illusts
+
+/*
+ * Finds the max_bookmark_id of the oldest page of a user's public or private bookmarks
+ *
+ * The Pixiv API has no way to arbitrarily navigate to any single bookmarked artwork.
+ * Instead, when making an API call we may specify a "max_bookmark_id" parameter, and are returned up to a page of
+ * the bookmarks made before it. The parameter is a timestamp of some sort, so adjusting it can have
+ * unpredictable results:
+ *   If the user has made many bookmarks in a short period of time, then a slight adjustment will present completely new artworks
+ *   If the user has slowly added bookmarks, then even a large adjustment will not result in a dramatically different API response
+ *
+ * Each response falls into one of three windows:
+ *   Too high: the response contains a next_url, there are older bookmarks still
+ *   Found: the response contains artworks, but no next_url. This is the oldest page
+ *   Too low: the response contains no artworks at all
+ *
+ * Every response is stored as a checkpoint. Once a Found checkpoint exists, no further calls are made.
+ * New bookmarks only ever appear above existing checkpoints, so a checkpoint stays valid until bookmarks below it
+ * are removed, see reportEmpty().
+ *
+ * Should a search be needed, it gallops down from the newest bookmarks, doubling the distance stepped each time,
+ * until it overshoots into Too low. It then binary searches between that and the last Too high response.
+ * Every Too high response carries the max_bookmark_id of the page after it, which is used as the new upper bound
+ * rather than the probed value. Searches resume from earlier checkpoints rather than starting over
+ */
+class BookmarkIndex(
+    private val userId: String,
+    private val visibility: String,
+    private val checkpointDao: BookmarkCheckpointDao,
+    private val bookmarksHelper: BookmarksHelper
+) {
+    companion object {
+        private const val LOG_TAG = "ANTONY_BOOKMARKS"
+
+        // Each probe is an API call, give up well before this becomes a burden
+        private const val MAX_PROBES = 40
+
+        // The first galloping step is this fraction of the distance between the newest bookmark and zero
+        private const val INITIAL_STEP_DIVISOR = 1024L
+
+        fun getNextMaxBookmarkId(illusts: Illusts): Long? =
+            illusts.next_url
+                ?.substringAfter("max_bookmark_id=", "")
+                ?.substringBefore('&')
+                ?.toLongOrNull()
+    }
+
+    private enum class Window {
+        TOO_LOW,
+        FOUND,
+        TOO_HIGH
+    }
+
+    private fun BookmarkCheckpointEntity.window(): Window = when {
+        firstIllustId == null -> Window.TOO_LOW
+        nextMaxBookmarkId == null -> Window.FOUND
+        else -> Window.TOO_HIGH
+    }
+
+    // Returns null if every bookmark fits on the newest page, in which case there is nothing to search
+    fun getOldestMaxBookmarkId(): Long? {
+        checkpointDao.deleteOtherUsers(userId)
+        val checkpoints = checkpointDao.getCheckpoints(userId, visibility)
+        checkpoints.firstOrNull { it.window() == Window.FOUND }?.let {
+            Log.d(LOG_TAG, "Oldest bookmark id ${it.maxBookmarkId} known from checkpoint")
+            return it.maxBookmarkId
+        }
+
+        var low = checkpoints.lastOrNull { it.window() == Window.TOO_LOW }?.maxBookmarkId ?: 0L
+        var high = checkpoints
+            .filter { it.window() == Window.TOO_HIGH }
+            .mapNotNull { it.nextMaxBookmarkId }
+            .filter { it > low }
+            .minOrNull()
+            ?: getNextMaxBookmarkId(bookmarksHelper.getNewBookmarks(visibility))
+            ?: return null
+        var step = (high / INITIAL_STEP_DIVISOR).coerceAtLeast(1)
+        var galloping = true
+
+        Log.d(LOG_TAG, "Searching for oldest bookmark id between $low and $high")
+        for (probeCount in 1..MAX_PROBES) {
+            if (high - low <= 1) {
+                break
+            }
+            val maxBookmarkId = if (galloping && high - step > low) high - step else low + (high - low) / 2
+            val checkpoint = probe(maxBookmarkId)
+            when (checkpoint.window()) {
+                Window.FOUND -> {
+                    Log.d(LOG_TAG, "Found at $maxBookmarkId after $probeCount calls")
+                    return maxBookmarkId
+                }
+
+                Window.TOO_HIGH -> {
+                    high = checkpoint.nextMaxBookmarkId!!.coerceAtMost(maxBookmarkId - 1)
+                    step *= 2
+                }
+
+                Window.TOO_LOW -> {
+                    low = maxBookmarkId
+                    galloping = false
+                }
+            }
+        }
+        // Only the oldest few bookmarks are out of reach from here
+        Log.w(LOG_TAG, "Search did not converge, settling for $high")
+        return high
+    }
+
+    // Called when a page at or above the oldest max_bookmark_id came back empty, i.e. old bookmarks were removed
+    // Checkpoints at or below it are no longer trustworthy, the next call to getOldestMaxBookmarkId() searches again
+    fun reportEmpty(maxBookmarkId: Long) {
+        Log.d(LOG_TAG, "Bookmarks below $maxBookmarkId were removed")
+        checkpointDao.deleteCheckpointsUpTo(userId, visibility, maxBookmarkId)
+        checkpointDao.insertCheckpoint(
+            BookmarkCheckpointEntity(userId, visibility, maxBookmarkId, null, null, System.currentTimeMillis())
+        )
+    }
+
+    private fun probe(maxBookmarkId: Long): BookmarkCheckpointEntity {
+        val illusts = bookmarksHelper.getNewBookmarks(visibility, maxBookmarkId.toString())
+        return BookmarkCheckpointEntity(
+            userId,
+            visibility,
+            maxBookmarkId,
+            illusts.artworks.firstOrNull()?.id,
+            getNextMaxBookmarkId(illusts),
+            System.currentTimeMillis()
+        ).also { checkpointDao.insertCheckpoint(it) }
+    }
+}
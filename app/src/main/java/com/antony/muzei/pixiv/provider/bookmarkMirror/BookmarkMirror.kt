@@ -0,0 +1,150 @@
+package com.antony.muzei.pixiv.provider.bookmarkMirror
+
+import android.util.Log
+import com.antony.muzei.pixiv.provider.BookmarksHelper
+import com.antony.muzei.pixiv.provider.network.moshi.Artist
+import com.antony.muzei.pixiv.provider.network.moshi.AuthArtwork
+import com.antony.muzei.pixiv.provider.network.moshi.Illusts
+import com.antony.muzei.pixiv.provider.network.moshi.Meta_Single_Page
+import com.antony.muzei.pixiv.provider.network.moshi.getOriginalImageUrl
+import java.util.concurrent.TimeUnit
+
+// A copy of a user's public or private bookmarks in the MirroredBookmarkEntity table
+// Once complete, bookmarks are sampled from it uniformly at random by a local query, no matter how unevenly
+// they were made over time, and without any API calls.
+//
+// The mirror is kept up to date a few pages at a time, so no single run pays for a large library:
+//  Head: the newest pages are fetched until one holds nothing new, at most every HEAD_SYNC_INTERVAL
+//  Pass: the whole library is walked, PAGES_PER_SYNC at a time, resuming from the stored next_url.
+//        Once a pass completes, any bookmark it did not come across has been removed, and is dropped.
+//        A new pass is started every PASS_INTERVAL to pick those removals up
+class BookmarkMirror(
+    private val userId: String,
+    private val visibility: String,
+    private val mirroredBookmarkDao: MirroredBookmarkDao,
+    private val bookmarksHelper: BookmarksHelper
+) {
+    companion object {
+        private const val LOG_TAG = "ANTONY_MIRROR"
+
+        // Upper bound on the API calls made by each of the head and the pass in a single sync
+        private const val PAGES_PER_SYNC = 10
+
+        private val HEAD_SYNC_INTERVAL = TimeUnit.HOURS.toMillis(6)
+        private val PASS_INTERVAL = TimeUnit.DAYS.toMillis(7)
+
+        // Rebuilds just enough of an AuthArtwork for it to be filtered and downloaded like one fresh from the API
+        fun MirroredBookmarkEntity.toAuthArtwork() = AuthArtwork(
+            height,
+            illustId,
+            emptyList(),
+            Meta_Single_Page(imageUrl),
+            sanityLevel,
+            title,
+            totalView,
+            type,
+            Artist(artistId, artistName),
+            width,
+            xRestrict
+        )
+
+        // Samples the mirrors of several visibilities as one pool, so each bookmark is as likely as any other
+        fun sample(
+            mirroredBookmarkDao: MirroredBookmarkDao,
+            userId: String,
+            visibilities: List<String>,
+            count: Int
+        ): List<AuthArtwork> =
+            mirroredBookmarkDao.sampleBookmarks(userId, visibilities, count).map { it.toAuthArtwork() }
+    }
+
+    // Whether a pass through the whole library has completed at least once, i.e. whether sample() is representative
+    fun isComplete(): Boolean =
+        mirroredBookmarkDao.getSyncState(userId, visibility)?.passCompletedAt != null
+
+    fun sample(count: Int): List<AuthArtwork> = sample(mirroredBookmarkDao, userId, listOf(visibility), count)
+
+    fun sync() {
+        mirroredBookmarkDao.deleteOtherUsersBookmarks(userId)
+        mirroredBookmarkDao.deleteOtherUsersSyncStates(userId)
+        val now = System.currentTimeMillis()
+        var state = mirroredBookmarkDao.getSyncState(userId, visibility)
+            ?: BookmarkSyncStateEntity(userId, visibility, 0L, null, null, null)
+
+        if (now - state.headSyncedAt >= HEAD_SYNC_INTERVAL) {
+            val nextUrl = syncHead(now)
+            state = state.copy(headSyncedAt = now)
+            // The head has just covered the first page of a new pass
+            if (state.passStartedAt == null &&
+                (state.passCompletedAt == null || now - state.passCompletedAt!! >= PASS_INTERVAL)
+            ) {
+                Log.i(LOG_TAG, "Starting a pass through $visibility bookmarks")
+                state = state.copy(passStartedAt = now, passNextUrl = nextUrl)
+                if (nextUrl == null) {
+                    state = completePass(state, now)
+                }
+            }
+            mirroredBookmarkDao.insertSyncState(state)
+        }
+
+        val passStartedAt = state.passStartedAt ?: return
+        var nextUrl = state.passNextUrl
+        var pages = 0
+        while (nextUrl != null && pages < PAGES_PER_SYNC) {
+            nextUrl = store(bookmarksHelper.getBookmarksAt(nextUrl), now).next_url
+            pages++
+        }
+        state = state.copy(passNextUrl = nextUrl)
+        if (nextUrl == null) {
+            state = completePass(state, passStartedAt)
+        }
+        mirroredBookmarkDao.insertSyncState(state)
+    }
+
+    // Fetches the newest pages until one holds nothing that was not already mirrored
+    // Returns the next_url of the first page
+    private fun syncHead(now: Long): String? {
+        var illusts = bookmarksHelper.getNewBookmarks(visibility)
+        val firstNextUrl = illusts.next_url
+        var pages = 1
+        while (true) {
+            val ids = illusts.artworks.map { it.id }
+            val known = if (ids.isEmpty()) emptyList() else mirroredBookmarkDao.getMirroredIllustIds(userId, ids)
+            store(illusts, now)
+            if (known.size == ids.size || illusts.next_url == null || pages >= PAGES_PER_SYNC) {
+                break
+            }
+            illusts = bookmarksHelper.getNextBookmarks()
+            pages++
+        }
+        Log.i(LOG_TAG, "Synced $pages newest pages of $visibility bookmarks")
+        return firstNextUrl
+    }
+
+    private fun completePass(state: BookmarkSyncStateEntity, passStartedAt: Long): BookmarkSyncStateEntity {
+        Log.i(LOG_TAG, "Completed a pass through $visibility bookmarks")
+        mirroredBookmarkDao.deleteNotSeenSince(userId, visibility, passStartedAt)
+        return state.copy(passStartedAt = null, passNextUrl = null, passCompletedAt = System.currentTimeMillis())
+    }
+
+    private fun store(illusts: Illusts, now: Long): Illusts = illusts.also {
+        mirroredBookmarkDao.insertBookmarks(it.artworks.map { artwork ->
+            MirroredBookmarkEntity(
+                userId,
+                artwork.id,
+                visibility,
+                artwork.title,
+                artwork.user.name,
+                artwork.user.id,
+                artwork.getOriginalImageUrl(),
+                artwork.width,
+                artwork.height,
+                artwork.type,
+                artwork.total_view,
+                artwork.sanity_level,
+                artwork.x_restrict,
+                now
+            )
+        })
+    }
+}
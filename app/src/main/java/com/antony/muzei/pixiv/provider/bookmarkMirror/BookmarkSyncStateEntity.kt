@@ -0,0 +1,18 @@
+package com.antony.muzei.pixiv.provider.bookmarkMirror
+
+import androidx.room.Entity
+
+// How far the mirror of one user's public or private bookmarks has got, see BookmarkMirror
+@Entity(primaryKeys = ["userId", "visibility"])
+data class BookmarkSyncStateEntity(
+        val userId: String,
+        val visibility: String,
+        // When the newest bookmarks were last fetched
+        val headSyncedAt: Long,
+        // When the pass through the whole library that is under way started, null if none is
+        val passStartedAt: Long?,
+        // Where that pass is to carry on from
+        val passNextUrl: String?,
+        // When the last complete pass finished, null until the first one has
+        val passCompletedAt: Long?
+)
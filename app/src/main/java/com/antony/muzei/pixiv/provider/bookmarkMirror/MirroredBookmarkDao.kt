@@ -0,0 +1,36 @@
+package com.antony.muzei.pixiv.provider.bookmarkMirror
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface MirroredBookmarkDao {
+    // Uniformly random, however the bookmarks were spread out over time
+    @Query("SELECT * FROM MirroredBookmarkEntity WHERE userId = (:userId) AND visibility IN (:visibilities) ORDER BY RANDOM() LIMIT (:limit)")
+    fun sampleBookmarks(userId: String, visibilities: List<String>, limit: Int): List<MirroredBookmarkEntity>
+
+    @Query("SELECT illustId FROM MirroredBookmarkEntity WHERE userId = (:userId) AND illustId IN (:illustIds)")
+    fun getMirroredIllustIds(userId: String, illustIds: List<Int>): List<Int>
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertBookmarks(bookmarks: List<MirroredBookmarkEntity>)
+
+    // Bookmarks a complete pass did not come across have since been removed
+    @Query("DELETE FROM MirroredBookmarkEntity WHERE userId = (:userId) AND visibility = (:visibility) AND lastSeen < (:cutoff)")
+    fun deleteNotSeenSince(userId: String, visibility: String, cutoff: Long)
+
+    @Query("SELECT * FROM BookmarkSyncStateEntity WHERE userId = (:userId) AND visibility = (:visibility)")
+    fun getSyncState(userId: String, visibility: String): BookmarkSyncStateEntity?
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertSyncState(state: BookmarkSyncStateEntity)
+
+    // Bookmarks of other, previously signed in, accounts
+    @Query("DELETE FROM MirroredBookmarkEntity WHERE userId != (:userId)")
+    fun deleteOtherUsersBookmarks(userId: String)
+
+    @Query("DELETE FROM BookmarkSyncStateEntity WHERE userId != (:userId)")
+    fun deleteOtherUsersSyncStates(userId: String)
+}
@@ -0,0 +1,28 @@
+package com.antony.muzei.pixiv.provider.bookmarkMirror
+
+import androidx.room.Entity
+import androidx.room.Index
+
+// A bookmarked artwork, with everything needed to filter and download it without asking Pixiv again
+@Entity(
+        primaryKeys = ["userId", "illustId"],
+        indices = [Index(value = ["userId", "visibility", "lastSeen"])]
+)
+data class MirroredBookmarkEntity(
+        val userId: String,
+        val illustId: Int,
+        // "public" or "private"
+        val visibility: String,
+        val title: String,
+        val artistName: String,
+        val artistId: Int,
+        val imageUrl: String?,
+        val width: Int,
+        val height: Int,
+        val type: String,
+        val totalView: Int,
+        val sanityLevel: Int,
+        val xRestrict: Int,
+        // When the bookmark was last returned by Pixiv, milliseconds since epoch
+        val lastSeen: Long
+)
@@ -0,0 +1,36 @@
+package com.antony.muzei.pixiv.provider.candidateQueue
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface CandidateDao {
+    @Query("SELECT * FROM CandidateEntity WHERE updateMode = (:updateMode) AND settingsFingerprint = (:settingsFingerprint)")
+    fun getCandidates(updateMode: String, settingsFingerprint: String): List<CandidateEntity>
+
+    @Query("SELECT * FROM CandidateEntity WHERE updateMode = (:updateMode) AND settingsFingerprint = (:settingsFingerprint) AND localUri IS NOT NULL")
+    fun getBufferedCandidates(updateMode: String, settingsFingerprint: String): List<CandidateEntity>
+
+    @Query("SELECT COUNT(*) FROM CandidateEntity WHERE updateMode = (:updateMode) AND settingsFingerprint = (:settingsFingerprint) AND localUri IS NOT NULL")
+    fun countBufferedCandidates(updateMode: String, settingsFingerprint: String): Int
+
+    // Candidates already queued are left as they are, so an already downloaded candidate does not lose its localUri
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    fun insertCandidates(candidates: List<CandidateEntity>)
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertBufferedCandidates(candidates: List<CandidateEntity>)
+
+    @Query("DELETE FROM CandidateEntity WHERE illustId IN (:illustIds)")
+    fun deleteCandidates(illustIds: List<Int>)
+
+    // The downloaded candidates deleteStaleCandidates() is about to remove, so their images can be removed too
+    @Query("SELECT * FROM CandidateEntity WHERE (updateMode != (:updateMode) OR settingsFingerprint != (:settingsFingerprint) OR enqueuedAt < (:cutoff)) AND localUri IS NOT NULL")
+    fun getStaleBufferedCandidates(updateMode: String, settingsFingerprint: String, cutoff: Long): List<CandidateEntity>
+
+    // Removes candidates matched for another update mode or other filter settings, and those that have sat for too long
+    @Query("DELETE FROM CandidateEntity WHERE updateMode != (:updateMode) OR settingsFingerprint != (:settingsFingerprint) OR enqueuedAt < (:cutoff)")
+    fun deleteStaleCandidates(updateMode: String, settingsFingerprint: String, cutoff: Long)
+}
@@ -0,0 +1,25 @@
+package com.antony.muzei.pixiv.provider.candidateQueue
+
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+// An artwork that has passed the user's filters, but has not been published to Muzei yet
+// Ranking and auth artworks are both reduced to this, so the download path does not need to know which it came from
+// Candidates with a localUri have already been downloaded ahead of time, and can be published without any network access
+@Entity
+data class CandidateEntity(
+        @PrimaryKey val illustId: Int,
+        val updateMode: String,
+        // The filter settings the artwork was matched against, see WorkerSettings.getFingerprint()
+        val settingsFingerprint: String,
+        val title: String,
+        val byline: String,
+        val artistId: Int,
+        val attribution: String?,
+        // Ranking artworks only come with a thumbnail URL, auth artworks with the original image URL
+        val thumbnailUrl: String?,
+        val imageUrl: String?,
+        // Milliseconds since epoch
+        val enqueuedAt: Long,
+        val localUri: String? = null
+)
@@ -37,6 +37,8 @@ object OkHttpSingleton {
 
     private var instance: OkHttpClient? = null
 
+    // Synchronized as artworks are downloaded from several threads at once
+    @Synchronized
     fun getInstance(): OkHttpClient {
         if (instance == null) {
             instance = OkHttpClient.Builder()
@@ -59,7 +61,12 @@ object OkHttpSingleton {
 
     fun refreshInstance(){
         // Through set it to null, the OkHttpClient will be create again and apply with new preference when `getInstance` was invoked.
-        instance = null
+        synchronized(this) {
+            instance = null
+        }
+        // Clients derived from the old instance would otherwise keep its settings
+        // Called outside of the lock above, as RestClient takes its own lock before calling getInstance()
+        RestClient.invalidate()
         Log.d(LOG_TAG,"set OkHttp instance to null")
     }
 }
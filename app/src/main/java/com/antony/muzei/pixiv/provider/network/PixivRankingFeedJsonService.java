@@ -17,17 +17,17 @@
 
 package com.antony.muzei.pixiv.provider.network;
 
-import com.antony.muzei.pixiv.provider.network.moshi.Contents;
-
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.GET;
 import retrofit2.http.Query;
 
+// Bodies are read with RankingContentsReader, rather than being converted by Retrofit
 public interface PixivRankingFeedJsonService
 {
     @GET("/ranking.php")
-    Call<Contents> getRankingJson(@Query("mode") String mode);
+    Call<ResponseBody> getRankingJson(@Query("mode") String mode);
 
     @GET("/ranking.php")
-    Call<Contents> getRankingJson(@Query("mode") String mode, @Query("p") int page, @Query("date") String date);
+    Call<ResponseBody> getRankingJson(@Query("mode") String mode, @Query("p") int page, @Query("date") String date);
 }
@@ -0,0 +1,58 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network
+
+import android.util.Log
+import com.antony.muzei.pixiv.PixivMuzeiSupervisor
+import com.antony.muzei.pixiv.provider.exceptions.AccessTokenAcquisitionException
+import okhttp3.Authenticator
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.Route
+
+// Fallback for when Pixiv rejects an access token that was believed to be valid, e.g. it was revoked early
+// The token is refreshed, and the request retried once with the new token.
+// Requests that were rejected together share a single refresh, see PixivInstrumentation.replaceAccessToken()
+class PixivTokenAuthenticator : Authenticator {
+    override fun authenticate(route: Route?, response: Response): Request? {
+        val request = response.request
+
+        // A rejected refresh token cannot be fixed by refreshing it
+        if (request.url.toString().endsWith("/auth/token")) {
+            return null
+        }
+        // Only retry once
+        if (response.priorResponse != null) {
+            return null
+        }
+        val staleToken = request.header("Authorization")?.removePrefix("Bearer ") ?: return null
+
+        val token = try {
+            PixivMuzeiSupervisor.replaceAccessToken(staleToken)
+        } catch (ex: AccessTokenAcquisitionException) {
+            Log.e("TRAFFIC", "Fail to refresh rejected access token on request ${request.url}", ex)
+            return null
+        }
+        if (token.isEmpty()) {
+            return null
+        }
+        return request.newBuilder()
+            .header("Authorization", "Bearer $token")
+            .build()
+    }
+}
@@ -16,27 +16,126 @@
  */
 package com.antony.muzei.pixiv.provider.network
 
+import android.util.Log
+import com.antony.muzei.pixiv.PixivMuzei
 import com.antony.muzei.pixiv.PixivProviderConst.OAUTH_URL
 import com.antony.muzei.pixiv.PixivProviderConst.PIXIV_API_HOST_URL
 import com.antony.muzei.pixiv.PixivProviderConst.PIXIV_IMAGE_URL
 import com.antony.muzei.pixiv.PixivProviderConst.PIXIV_RANKING_URL
+import com.antony.muzei.pixiv.provider.network.interceptor.CacheControlInterceptor
+import com.antony.muzei.pixiv.provider.network.interceptor.ImageIntegrityInterceptor
 import com.antony.muzei.pixiv.provider.network.interceptor.PixivAuthHeaderInterceptor
 import com.antony.muzei.pixiv.provider.network.interceptor.StandardAuthHttpHeaderInterceptor
 import com.antony.muzei.pixiv.provider.network.interceptor.StandardImageHttpHeaderInterceptor
+import okhttp3.Cache
 import okhttp3.Interceptor
+import okhttp3.OkHttpClient
 import retrofit2.Retrofit
 import retrofit2.converter.moshi.MoshiConverterFactory
+import java.io.File
+import java.io.IOException
 
+// Every client and Retrofit instance is built once, on first use, and then reused
+// All clients are derived from OkHttpSingleton, sharing its connection pool and dispatcher, so keep-alive
+// connections stay warm between calls. They are all rebuilt after OkHttpSingleton.refreshInstance()
 object RestClient {
-    private val okHttpClientAuthBuilder
-        get() = OkHttpSingleton.getInstance().newBuilder()
+    private const val LOG_TAG = "ANTONY_REST"
+
+    private const val HTTP_CACHE_SIZE = 10L * 1024 * 1024
+
+    // How long, in seconds, a ranking page may be served from the HTTP cache, by ranking mode
+    // Rankings are published once a day; anything past max-age is revalidated rather than downloaded again
+    private val RANKING_MAX_AGE = mapOf(
+        "daily" to 3 * 60 * 60,
+        "rookie" to 3 * 60 * 60,
+        "original" to 3 * 60 * 60,
+        "male" to 3 * 60 * 60,
+        "female" to 3 * 60 * 60,
+        "weekly" to 12 * 60 * 60,
+        "monthly" to 24 * 60 * 60
+    )
+
+    // How long, in seconds, an auth feed page may be served from the HTTP cache, by API path
+    // Recommended is left out as every request is expected to return something new
+    private val FEED_MAX_AGE = mapOf(
+        "/v2/illust/follow" to 10 * 60,
+        "/v1/user/illusts" to 60 * 60,
+        "/v1/search/illust" to 30 * 60,
+        "/v1/user/bookmarks/illust" to 30 * 60
+    )
+
+    // Shared between the ranking and feed clients, as OkHttp allows only one Cache per directory
+    private val httpCache by lazy {
+        Cache(File(PixivMuzei.context!!.cacheDir, "http_cache"), HTTP_CACHE_SIZE)
+    }
+
+    // Cached feed pages are keyed by URL alone, and belong to the account they were fetched with
+    // Called whenever a different account signs in, so it is never served the previous account's feeds
+    fun evictHttpCache() {
+        try {
+            httpCache.evictAll()
+        } catch (e: IOException) {
+            Log.w(LOG_TAG, "Could not clear the HTTP cache", e)
+        }
+    }
+
+    private var authHttpClient: OkHttpClient? = null
+    private var feedHttpClient: OkHttpClient? = null
+    private var imageHttpClient: OkHttpClient? = null
+    private var rankingInstance: Retrofit? = null
+    private var authInstance: Retrofit? = null
+    private var bookmarkInstance: Retrofit? = null
+    private var imageInstance: Retrofit? = null
+    private var oauthInstance: Retrofit? = null
+
+    // Called by OkHttpSingleton when its client is replaced
+    @Synchronized
+    fun invalidate() {
+        authHttpClient = null
+        feedHttpClient = null
+        imageHttpClient = null
+        rankingInstance = null
+        authInstance = null
+        bookmarkInstance = null
+        imageInstance = null
+        oauthInstance = null
+    }
+
+    // Attaches the Pixiv app API headers, and an access token
+    // Should the access token be rejected anyway, it is refreshed and the request retried once
+    @Synchronized
+    fun getAuthHttpClient(): OkHttpClient =
+        authHttpClient ?: OkHttpSingleton.getInstance().newBuilder()
             .apply {
                 addInterceptor(PixivAuthHeaderInterceptor())
                 addInterceptor(StandardAuthHttpHeaderInterceptor())
+                authenticator(PixivTokenAuthenticator())
             }
+            .build()
+            .also { authHttpClient = it }
+
+    // As getAuthHttpClient(), with feed pages cached on disk
+    @Synchronized
+    private fun getFeedHttpClient(): OkHttpClient =
+        feedHttpClient ?: getAuthHttpClient().newBuilder()
+            .cache(httpCache)
+            .addNetworkInterceptor(CacheControlInterceptor { FEED_MAX_AGE[it.url.encodedPath] ?: 0 })
+            .build()
+            .also { feedHttpClient = it }
+
+    // Downloads original images, verifying each body as it is streamed
+    @Synchronized
+    fun getImageHttpClient(): OkHttpClient =
+        imageHttpClient ?: OkHttpSingleton.getInstance().newBuilder()
+            //.addNetworkInterceptor(NetworkTrafficLogInterceptor())
+            .addInterceptor(StandardImageHttpHeaderInterceptor())
+            .addInterceptor(ImageIntegrityInterceptor())
+            .build()
+            .also { imageHttpClient = it }
 
     // Used for acquiring Ranking JSON
-    fun getRetrofitRankingInstance(): Retrofit {
+    @Synchronized
+    fun getRetrofitRankingInstance(): Retrofit = rankingInstance ?: run {
         val okHttpClientRanking =
             OkHttpSingleton.getInstance().newBuilder() // Debug logging interceptor
                 .addInterceptor(Interceptor { chain: Interceptor.Chain ->
@@ -52,50 +151,55 @@ object RestClient {
                             .build()
                     chain.proceed(request)
                 })
+                .cache(httpCache)
+                .addNetworkInterceptor(CacheControlInterceptor {
+                    RANKING_MAX_AGE[it.url.queryParameter("mode")] ?: 0
+                })
                 .build()
-        return Retrofit.Builder()
+        Retrofit.Builder()
             .client(okHttpClientRanking)
             .baseUrl(PIXIV_RANKING_URL)
             .addConverterFactory(MoshiConverterFactory.create())
             .build()
-    }
+    }.also { rankingInstance = it }
 
     // Used for acquiring auth feed mode JSON
-    fun getRetrofitAuthInstance(): Retrofit {
-        return Retrofit.Builder()
-            .client(okHttpClientAuthBuilder.build())
-            .baseUrl(PIXIV_API_HOST_URL)
-            .addConverterFactory(MoshiConverterFactory.create())
-            .build()
-    }
+    @Synchronized
+    fun getRetrofitAuthInstance(): Retrofit = authInstance ?: Retrofit.Builder()
+        .client(getFeedHttpClient())
+        .baseUrl(PIXIV_API_HOST_URL)
+        .addConverterFactory(MoshiConverterFactory.create())
+        .build()
+        .also { authInstance = it }
 
     // Used to add artworks to your list of bookmarks
-    fun getRetrofitBookmarkInstance(): Retrofit {
-        return Retrofit.Builder()
-            .client(OkHttpSingleton.getInstance())
-            .baseUrl(PIXIV_API_HOST_URL)
-            .build()
-    }
+    @Synchronized
+    fun getRetrofitBookmarkInstance(): Retrofit = bookmarkInstance ?: Retrofit.Builder()
+        .client(OkHttpSingleton.getInstance())
+        .baseUrl(PIXIV_API_HOST_URL)
+        .build()
+        .also { bookmarkInstance = it }
 
     // Downloads images from any source
-    fun getRetrofitImageInstance(): Retrofit {
-        val imageHttpClient = OkHttpSingleton.getInstance().newBuilder()
-            .addInterceptor(StandardImageHttpHeaderInterceptor())
-            .build()
-        return Retrofit.Builder()
-            .client(imageHttpClient)
-            .baseUrl(PIXIV_IMAGE_URL)
-            .addConverterFactory(MoshiConverterFactory.create())
-            .build()
-    }
+    @Synchronized
+    fun getRetrofitImageInstance(): Retrofit = imageInstance ?: Retrofit.Builder()
+        .client(
+            OkHttpSingleton.getInstance().newBuilder()
+                .addInterceptor(StandardImageHttpHeaderInterceptor())
+                .build()
+        )
+        .baseUrl(PIXIV_IMAGE_URL)
+        .addConverterFactory(MoshiConverterFactory.create())
+        .build()
+        .also { imageInstance = it }
 
     // Used for getting an accessToken from a refresh token or username / password
     @JvmStatic
-    fun getRetrofitOauthInstance(): Retrofit {
-        return Retrofit.Builder()
-            .baseUrl(OAUTH_URL)
-            .client(okHttpClientAuthBuilder.build())
-            .addConverterFactory(MoshiConverterFactory.create())
-            .build()
-    }
+    @Synchronized
+    fun getRetrofitOauthInstance(): Retrofit = oauthInstance ?: Retrofit.Builder()
+        .baseUrl(OAUTH_URL)
+        .client(getAuthHttpClient())
+        .addConverterFactory(MoshiConverterFactory.create())
+        .build()
+        .also { oauthInstance = it }
 }
@@ -0,0 +1,181 @@
+package com.antony.muzei.pixiv.provider.network
+
+import android.util.Log
+import com.antony.muzei.pixiv.provider.exceptions.CorruptFileException
+import okhttp3.HttpUrl
+import okhttp3.MediaType
+import okhttp3.MediaType.Companion.toMediaTypeOrNull
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import okio.appendingSink
+import okio.buffer
+import okio.sink
+import java.io.File
+import java.io.IOException
+import java.util.Properties
+
+// Downloads images into "<name>.part" files within `directory`
+// Next to each part file sits "<name>.meta", recording the URL, content type and validator (ETag or Last-Modified)
+// of the response that is being saved.
+//
+// If a transfer is cut off, the part file is kept. The next attempt at the same URL, whether it is a retry within
+// the same worker run or a later run altogether, then asks the server for the remaining bytes only, using a
+// Range request guarded by If-Range. Should the image have changed on the server in the meantime, the server
+// replies with the whole image and the download starts again from zero.
+class ResumableDownload(private val directory: File, private val client: OkHttpClient) {
+    companion object {
+        private const val LOG_TAG = "ANTONY_RESUME"
+
+        private const val META_URL = "url"
+        private const val META_VALIDATOR = "validator"
+        private const val META_CONTENT_TYPE = "contentType"
+        private const val META_TOTAL_LENGTH = "totalLength"
+    }
+
+    class Completed(val file: File, val contentType: MediaType?)
+
+    // Returns the completed part file, or null if the server did not return the image, i.e. any 400 class error
+    // Throws IOException if the transfer was interrupted, the part file is kept so it can be resumed
+    // Throws CorruptFileException if the image failed verification, the part file is discarded
+    @Throws(IOException::class, CorruptFileException::class)
+    fun download(url: HttpUrl, name: String): Completed? {
+        if (!directory.exists()) {
+            directory.mkdirs()
+        }
+        val partFile = File(directory, "$name.part")
+        val metaFile = File(directory, "$name.meta")
+
+        val meta = readMeta(metaFile)
+        val resumeFrom = if (meta?.getProperty(META_URL) == url.toString() && meta.getProperty(META_VALIDATOR) != null) {
+            partFile.length()
+        } else {
+            0L
+        }
+
+        val request = Request.Builder()
+            .url(url)
+            .get()
+            // Byte offsets must refer to the image itself, not to a compressed transfer of it
+            .header("Accept-Encoding", "identity")
+            .apply {
+                if (resumeFrom > 0) {
+                    Log.i(LOG_TAG, "Resuming $name from byte $resumeFrom")
+                    header("Range", "bytes=$resumeFrom-")
+                    header("If-Range", meta!!.getProperty(META_VALIDATOR))
+                }
+            }
+            .build()
+
+        client.newCall(request).execute().use { response ->
+            val append = when {
+                response.code == 206 && resumeFrom > 0 && contentRangeStart(response) == resumeFrom -> true
+                response.code == 206 && resumeFrom > 0 -> {
+                    // Not the range that was asked for, start over without one
+                    discard(partFile, metaFile)
+                    return download(url, name)
+                }
+
+                response.code == 206 -> {
+                    // A partial image that was never asked for, there is nothing it could be appended to
+                    discard(partFile, metaFile)
+                    throw CorruptFileException("Unrequested partial response for $name")
+                }
+
+                response.code == 416 && resumeFrom > 0 -> {
+                    // Nothing left to send, the previous attempt was cut off just before it could finish up
+                    val totalLength = meta!!.getProperty(META_TOTAL_LENGTH)?.toLongOrNull()
+                    if (totalLength == resumeFrom) {
+                        return complete(partFile, metaFile, meta.getProperty(META_CONTENT_TYPE)?.toMediaTypeOrNull())
+                    }
+                    discard(partFile, metaFile)
+                    return download(url, name)
+                }
+
+                response.isSuccessful -> false
+                else -> return null
+            }
+
+            val contentType = response.body.contentType()
+                ?: meta?.getProperty(META_CONTENT_TYPE)?.toMediaTypeOrNull()
+            if (!append) {
+                writeMeta(metaFile, url, response, contentType)
+            }
+
+            try {
+                (if (append) partFile.appendingSink() else partFile.sink()).buffer().use { sink ->
+                    sink.writeAll(response.body.source())
+                }
+            } catch (e: CorruptFileException) {
+                // Bytes were received, but not the right ones; they cannot be built upon
+                discard(partFile, metaFile)
+                throw e
+            }
+
+            val totalLength = totalLength(response)
+            if (totalLength != null && totalLength != partFile.length()) {
+                discard(partFile, metaFile)
+                throw CorruptFileException("Expected $totalLength bytes, but ${partFile.length()} were saved")
+            }
+            return complete(partFile, metaFile, contentType)
+        }
+    }
+
+    // Returns the URL a previous, unfinished, download of `name` was made against
+    fun getPendingUrl(name: String): String? =
+        readMeta(File(directory, "$name.meta"))?.getProperty(META_URL)
+
+    // Removes part files that have not been touched in a while, e.g. an artwork that has since been filtered out
+    fun pruneStale(maxAgeMillis: Long) {
+        val cutoff = System.currentTimeMillis() - maxAgeMillis
+        directory.listFiles()
+            ?.filter { it.lastModified() < cutoff }
+            ?.forEach { it.delete() }
+    }
+
+    private fun complete(partFile: File, metaFile: File, contentType: MediaType?): Completed {
+        metaFile.delete()
+        return Completed(partFile, contentType)
+    }
+
+    private fun discard(partFile: File, metaFile: File) {
+        partFile.delete()
+        metaFile.delete()
+    }
+
+    // Content-Range: bytes 1000-4999/5000
+    private fun contentRangeStart(response: Response): Long? =
+        response.header("Content-Range")
+            ?.substringAfter("bytes ", "")
+            ?.substringBefore('-')
+            ?.toLongOrNull()
+
+    private fun totalLength(response: Response): Long? =
+        if (response.code == 206) {
+            response.header("Content-Range")?.substringAfterLast('/')?.toLongOrNull()
+        } else {
+            response.header("Content-Length")?.toLongOrNull()
+        }
+
+    private fun readMeta(metaFile: File): Properties? {
+        if (!metaFile.exists()) {
+            return null
+        }
+        return try {
+            Properties().apply { metaFile.inputStream().use { load(it) } }
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    private fun writeMeta(metaFile: File, url: HttpUrl, response: Response, contentType: MediaType?) {
+        Properties().apply {
+            setProperty(META_URL, url.toString())
+            (response.header("ETag") ?: response.header("Last-Modified"))?.let { setProperty(META_VALIDATOR, it) }
+            contentType?.let { setProperty(META_CONTENT_TYPE, it.toString()) }
+            totalLength(response)?.let { setProperty(META_TOTAL_LENGTH, it.toString()) }
+        }.let { properties ->
+            metaFile.outputStream().use { properties.store(it, null) }
+        }
+    }
+}
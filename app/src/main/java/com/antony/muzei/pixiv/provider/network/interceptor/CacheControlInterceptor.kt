@@ -0,0 +1,28 @@
+package com.antony.muzei.pixiv.provider.network.interceptor
+
+import okhttp3.Interceptor
+import okhttp3.Request
+import okhttp3.Response
+
+// Pixiv marks its JSON responses as uncacheable, even though rankings only change once a day
+// This network interceptor replaces the Cache-Control header of successful responses with a max-age of our
+// choosing, so that the OkHttp Cache attached to the same client serves repeated requests locally.
+// Once max-age has passed, the Cache revalidates with If-None-Match / If-Modified-Since if Pixiv sent a validator
+//
+// `maxAgeSeconds` returns how long the response to a given request may be reused for, or 0 to leave it alone
+class CacheControlInterceptor(private val maxAgeSeconds: (Request) -> Int) : Interceptor {
+    override fun intercept(chain: Interceptor.Chain): Response {
+        val request = chain.request()
+        val response = chain.proceed(request)
+
+        val maxAge = maxAgeSeconds(request)
+        if (maxAge <= 0 || request.method != "GET" || !response.isSuccessful) {
+            return response
+        }
+        return response.newBuilder()
+            .removeHeader("Pragma")
+            .removeHeader("Expires")
+            .header("Cache-Control", "private, max-age=$maxAge")
+            .build()
+    }
+}
@@ -3,16 +3,28 @@ package com.antony.muzei.pixiv.provider.network.interceptor
 import android.util.Log
 import com.antony.muzei.pixiv.provider.exceptions.CorruptFileException
 import okhttp3.Interceptor
+import okhttp3.MediaType
 import okhttp3.Response
+import okhttp3.ResponseBody
+import okio.Buffer
+import okio.BufferedSource
+import okio.ByteString
+import okio.ByteString.Companion.decodeBase64
+import okio.ForwardingSource
+import okio.HashingSource
+import okio.Source
+import okio.buffer
 
 // This interceptor makes sure the artworks we are downloading from Pixiv are nto corrupt due to network issues
 // It does this by checking the declared length from the HTTP response header ("content-length")
 // Then comparing it to the actual length of the response body.
-// If a mismatch is found then the request is retried up to three times after a short delay.
-// If an intact is still not found, then an exception is thrown
+//
+// Nothing is buffered. The body is counted (and checked against "content-md5" if the server sent one) as the
+// caller reads it, and a CorruptFileException is thrown from the read that reaches the end of a mismatched body.
+// The caller is then responsible for discarding what it wrote and retrying
 class ImageIntegrityInterceptor : Interceptor {
     override fun intercept(chain: Interceptor.Chain): Response {
-        var response = chain.proceed(chain.request())
+        val response = chain.proceed(chain.request())
 
         // This interceptor should only work for image responses
         if (response.header("content-type")?.contains("image") == false) {
@@ -20,24 +32,62 @@ class ImageIntegrityInterceptor : Interceptor {
             return response
         }
 
-        var retryCount = 0
-        while (retryCount < 3) {
-            val contentLength = response.header("content-length")?.toLong()
-            val responseLength = response.peekBody(Long.MAX_VALUE).bytes().size.toLong()
-            // I am unsure where response.body.contentLength() gets its answer from, but I am reasonably sure that it mirrors the header value
-            // Which is why I am making a copy of the body and then counting the number of bytes
-            // I am aware that this will buffer the entire body into memory and then is discarded immediately after use
+        // HEAD requests never carry a body, so there is nothing to verify
+        if (chain.request().method == "HEAD") {
+            return response
+        }
+
+        val contentLength = response.header("content-length")?.toLongOrNull()
+        val contentMd5 = response.header("content-md5")?.decodeBase64()
+        if (contentLength == null && contentMd5 == null) {
+            return response
+        }
+        return response.newBuilder()
+            .body(VerifyingResponseBody(response.body, contentLength, contentMd5))
+            .build()
+    }
+
+    private class VerifyingResponseBody(
+        private val delegate: ResponseBody,
+        private val expectedLength: Long?,
+        private val expectedMd5: ByteString?
+    ) : ResponseBody() {
+        private val verifyingSource: BufferedSource by lazy {
+            val hashingSource = expectedMd5?.let { HashingSource.md5(delegate.source()) }
+            VerifyingSource(hashingSource ?: delegate.source(), hashingSource).buffer()
+        }
+
+        override fun contentType(): MediaType? = delegate.contentType()
+
+        override fun contentLength(): Long = delegate.contentLength()
+
+        override fun source(): BufferedSource = verifyingSource
+
+        override fun close() = delegate.close()
+
+        private inner class VerifyingSource(
+            source: Source,
+            private val hashingSource: HashingSource?
+        ) : ForwardingSource(source) {
+            private var bytesRead = 0L
 
-            Log.d("LENGTH", "Reported length: $contentLength")
-            Log.d("LENGTH", "Actual length: $responseLength")
+            override fun read(sink: Buffer, byteCount: Long): Long {
+                val read = super.read(sink, byteCount)
+                if (read != -1L) {
+                    bytesRead += read
+                    return read
+                }
 
-            if (contentLength == null || contentLength == responseLength) {
-                return response
+                Log.d("LENGTH", "Reported length: $expectedLength")
+                Log.d("LENGTH", "Actual length: $bytesRead")
+                if (expectedLength != null && expectedLength != bytesRead) {
+                    throw CorruptFileException("Image length mismatch, expected $expectedLength but read $bytesRead")
+                }
+                if (hashingSource != null && hashingSource.hash != expectedMd5) {
+                    throw CorruptFileException("Image checksum mismatch")
+                }
+                return read
             }
-            response = chain.proceed(chain.request())
-            retryCount++
-            Log.d("LENGTH", "Corrupt image found, attempt $retryCount / 3")
         }
-        throw CorruptFileException("Could not download intact image")
     }
 }
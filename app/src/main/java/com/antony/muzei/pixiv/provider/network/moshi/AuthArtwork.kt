@@ -18,38 +18,35 @@ package com.antony.muzei.pixiv.provider.network.moshi
 
 import com.squareup.moshi.JsonClass
 
+// Only the fields the worker makes use of are declared
+// Everything else in the feed JSON, e.g. captions, tags, tools and the resized image URLs, is skipped over
+// by the generated adapter without being decoded
 @JsonClass(generateAdapter = true)
 data class AuthArtwork(
-    val caption: String,
-    val create_date: String,
     val height: Int,
     val id: Int,
-    val image_urls: Image_Urls,
-    val is_bookmarked: Boolean,
-    val is_muted: Boolean,
     val meta_pages: List<Meta_Pages>,
     val meta_single_page: Meta_Single_Page,
-    val page_count: Int,
-    val restrict: Int,
     val sanity_level: Int,
-    val tags: List<Tags>,
     val title: String,
-    val tools: List<String>,
-    val total_bookmarks: Int,
     val total_view: Int,
     val type: String,
     val user: Artist,
-    val visible: Boolean,
     val width: Int,
     val x_restrict: Int
 )
 
+// Single page artworks carry their original image URL in meta_single_page, multi page artworks in meta_pages
+fun AuthArtwork.getOriginalImageUrl(): String? =
+    if (meta_pages.isEmpty()) {
+        meta_single_page.original_image_url
+    } else {
+        meta_pages[0].image_urls.original
+    }
+
 @JsonClass(generateAdapter = true)
 data class Image_Urls(
-    val large: String?,
-    val medium: String?,
     val original: String?,
-    val square_medium: String?,
 )
 
 @JsonClass(generateAdapter = true)
@@ -60,12 +57,8 @@ data class Meta_Pages(
 @JsonClass(generateAdapter = true)
 data class Meta_Single_Page(val original_image_url: String?)
 
-@JsonClass(generateAdapter = true)
-data class Tags(val name: String)
-
 @JsonClass(generateAdapter = true)
 data class Artist(
-    val account: String,
     val id: Int,
     val name: String
 )
@@ -0,0 +1,184 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network.moshi
+
+import com.squareup.moshi.JsonDataException
+import com.squareup.moshi.JsonReader
+import okio.BufferedSource
+
+// Reads a page of the ranking JSON straight off the response body
+// Rather than decoding all 50 artworks before any filtering happens, each artwork is tested against `accept` as
+// soon as it has been read, and dropped on the spot if it fails. Once `limit` artworks have been accepted, the rest
+// of the array is skipped over without being decoded at all.
+// Fields the app has no use for, e.g. tags and profile images, are skipped rather than decoded
+class RankingContentsReader(
+    private val accept: (RankingArtwork) -> Boolean = { true },
+    private val limit: Int = Int.MAX_VALUE
+) {
+    companion object {
+        private val CONTENTS_OPTIONS = JsonReader.Options.of(
+            "content", "contents", "date", "mode", "next", "page", "prev_date", "rank_total"
+        )
+        private val ARTWORK_OPTIONS = JsonReader.Options.of(
+            "height", "illust_content_type", "illust_id", "illust_type", "rank",
+            "title", "url", "user_id", "user_name", "view_count", "width"
+        )
+        private val CONTENT_TYPE_OPTIONS = JsonReader.Options.of("sexual")
+    }
+
+    fun read(source: BufferedSource): Contents = JsonReader.of(source).use { reader ->
+        var content: String? = null
+        var artworks: List<RankingArtwork>? = null
+        var date: String? = null
+        var mode: String? = null
+        var next = 0
+        var page: Int? = null
+        var prevDate = ""
+        var rankTotal = 0
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.selectName(CONTENTS_OPTIONS)) {
+                0 -> content = reader.nextString()
+                1 -> artworks = readArtworks(reader)
+                2 -> date = reader.nextString()
+                3 -> mode = reader.nextString()
+                // false on the last page
+                4 -> next = nextIntOrNull(reader) ?: 0
+                5 -> page = reader.nextInt()
+                // false when there is no earlier ranking
+                6 -> prevDate = nextStringOrNull(reader) ?: ""
+                7 -> rankTotal = nextIntOrNull(reader) ?: 0
+                else -> {
+                    reader.skipName()
+                    reader.skipValue()
+                }
+            }
+        }
+        reader.endObject()
+
+        Contents(
+            content ?: throw missing("content"),
+            artworks ?: throw missing("contents"),
+            date ?: throw missing("date"),
+            mode ?: throw missing("mode"),
+            next,
+            page ?: throw missing("page"),
+            prevDate,
+            rankTotal
+        )
+    }
+
+    private fun readArtworks(reader: JsonReader): List<RankingArtwork> {
+        val artworks = mutableListOf<RankingArtwork>()
+        reader.beginArray()
+        while (reader.hasNext()) {
+            if (artworks.size >= limit) {
+                reader.skipValue()
+                continue
+            }
+            readArtwork(reader).takeIf(accept)?.let { artworks.add(it) }
+        }
+        reader.endArray()
+        return artworks
+    }
+
+    private fun readArtwork(reader: JsonReader): RankingArtwork {
+        var height: Int? = null
+        var sexual: Int? = null
+        var illustId: Int? = null
+        var illustType: Int? = null
+        var rank: Int? = null
+        var title: String? = null
+        var url: String? = null
+        var userId: Int? = null
+        var userName: String? = null
+        var viewCount: Int? = null
+        var width: Int? = null
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.selectName(ARTWORK_OPTIONS)) {
+                0 -> height = reader.nextInt()
+                1 -> sexual = readSexual(reader)
+                2 -> illustId = reader.nextInt()
+                3 -> illustType = reader.nextInt()
+                4 -> rank = reader.nextInt()
+                5 -> title = reader.nextString()
+                6 -> url = reader.nextString()
+                7 -> userId = reader.nextInt()
+                8 -> userName = reader.nextString()
+                9 -> viewCount = reader.nextInt()
+                10 -> width = reader.nextInt()
+                else -> {
+                    reader.skipName()
+                    reader.skipValue()
+                }
+            }
+        }
+        reader.endObject()
+
+        return RankingArtwork(
+            height ?: throw missing("height"),
+            Illust_Content_Type(sexual ?: throw missing("sexual")),
+            illustId ?: throw missing("illust_id"),
+            illustType ?: throw missing("illust_type"),
+            rank ?: throw missing("rank"),
+            title ?: throw missing("title"),
+            url ?: throw missing("url"),
+            userId ?: throw missing("user_id"),
+            userName ?: throw missing("user_name"),
+            viewCount ?: throw missing("view_count"),
+            width ?: throw missing("width")
+        )
+    }
+
+    private fun readSexual(reader: JsonReader): Int? {
+        var sexual: Int? = null
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.selectName(CONTENT_TYPE_OPTIONS)) {
+                0 -> sexual = reader.nextInt()
+                else -> {
+                    reader.skipName()
+                    reader.skipValue()
+                }
+            }
+        }
+        reader.endObject()
+        return sexual
+    }
+
+    private fun nextIntOrNull(reader: JsonReader): Int? =
+        if (reader.peek() == JsonReader.Token.NUMBER) {
+            reader.nextInt()
+        } else {
+            reader.skipValue()
+            null
+        }
+
+    private fun nextStringOrNull(reader: JsonReader): String? =
+        if (reader.peek() == JsonReader.Token.STRING) {
+            reader.nextString()
+        } else {
+            reader.skipValue()
+            null
+        }
+
+    private fun missing(name: String) = JsonDataException("Required value '$name' missing at ranking JSON")
+}
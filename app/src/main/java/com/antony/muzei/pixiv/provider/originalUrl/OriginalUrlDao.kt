@@ -0,0 +1,25 @@
+package com.antony.muzei.pixiv.provider.originalUrl
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface OriginalUrlDao {
+    @Query("SELECT * FROM OriginalUrlEntity WHERE illustId = (:illustId)")
+    fun getOriginalUrl(illustId: Int): OriginalUrlEntity?
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertOriginalUrl(originalUrl: OriginalUrlEntity)
+
+    @Query("UPDATE OriginalUrlEntity SET lastVerified = (:time) WHERE illustId = (:illustId)")
+    fun updateLastVerified(illustId: Int, time: Long)
+
+    @Query("DELETE FROM OriginalUrlEntity WHERE illustId = (:illustId)")
+    fun deleteOriginalUrl(illustId: Int)
+
+    // Entries this old have not been used in a long time, as they have dropped out of the rankings
+    @Query("DELETE FROM OriginalUrlEntity WHERE lastVerified < (:cutoff)")
+    fun deleteVerifiedBefore(cutoff: Long)
+}
@@ -0,0 +1,15 @@
+package com.antony.muzei.pixiv.provider.originalUrl
+
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+// The original resolution image URL a Ranking artwork's thumbnail was found to correspond to
+@Entity
+data class OriginalUrlEntity(
+        @PrimaryKey val illustId: Int,
+        val originalUrl: String,
+        val extension: String,
+        val contentLength: Long?,
+        // Milliseconds since epoch at which the server last confirmed the URL, or it was last matched to a thumbnail
+        val lastVerified: Long
+)
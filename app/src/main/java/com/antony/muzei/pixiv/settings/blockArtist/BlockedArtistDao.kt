@@ -10,6 +10,13 @@ interface BlockedArtistDao {
     @Query("SELECT EXISTS(SELECT * FROM BlockArtistEntity WHERE artistId = (:artistId))")
     fun isRowIsExist(artistId: Int): Boolean
 
+    // Returns those of the passed artistIds that are present in the table
+    @Query("SELECT artistId FROM BlockArtistEntity WHERE artistId IN (:artistIds)")
+    fun getBlockedArtistIds(artistIds: List<String>): List<String>
+
+    @Query("SELECT artistId FROM BlockArtistEntity")
+    fun getAllBlockedArtistIds(): List<String>
+
     @Insert(onConflict = OnConflictStrategy.ABORT)
     fun insertBlockedArtistId(blockedArtistIds: List<BlockArtistEntity>)
 }
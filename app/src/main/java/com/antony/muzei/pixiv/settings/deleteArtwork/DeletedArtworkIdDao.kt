@@ -15,6 +15,14 @@ interface DeletedArtworkIdDao {
     @Query("SELECT EXISTS(SELECT * FROM DeletedArtworkIdEntity WHERE artworkId = (:artworkId))")
     fun isRowIsExist(artworkId : Int) : Boolean
 
+    // Returns those of the passed artworkIds that are present in the table
+    // Lets a whole page of candidates be checked with a single query
+    @Query("SELECT artworkId FROM DeletedArtworkIdEntity WHERE artworkId IN (:artworkIds)")
+    fun getDeletedArtworkIds(artworkIds: List<String>): List<String>
+
+    @Query("SELECT artworkId FROM DeletedArtworkIdEntity")
+    fun getAllDeletedArtworkIds(): List<String>
+
     @Insert(onConflict = OnConflictStrategy.ABORT)
     fun insertDeletedArtworkId(deletedArtworkIds: List<DeletedArtworkIdEntity>)
 }
@@ -120,6 +120,26 @@ class AdvOptionsPreferenceFragment : PreferenceFragmentCompat() {
             }
         }
 
+        // Slider that sets how large the image cache may grow, in units of 10 MB
+        findPreference<SeekBarPreference>("prefSlider_cacheBudget")?.let {
+            it.updatesContinuously = true
+            val cacheBudgetSummary = { value: Int ->
+                if (value == 0) getString(R.string.prefSummary_noCacheLimit) else "${value * 10}MB"
+            }
+            // The daily trim has nothing to do without a limit
+            val updateAutoClear = { value: Int ->
+                findPreference<SwitchPreference>("pref_autoClearMode")?.isEnabled = value != 0
+            }
+            it.summary = cacheBudgetSummary(sharedPrefs.getInt("prefSlider_cacheBudget", 50))
+            updateAutoClear(sharedPrefs.getInt("prefSlider_cacheBudget", 50))
+            it.onPreferenceChangeListener =
+                Preference.OnPreferenceChangeListener { _: Preference?, newValue: Any ->
+                    it.summary = cacheBudgetSummary(newValue as Int)
+                    updateAutoClear(newValue)
+                    true
+                }
+        }
+
         // Maximum file size slider
 //        SeekBarPreference maximumFileSizeSliderPref = findPreference("prefSlider_maxFileSize");
 //        maximumFileSizeSliderPref.setUpdatesContinuously(true);
@@ -200,6 +220,29 @@ class AdvOptionsPreferenceFragment : PreferenceFragmentCompat() {
                 }
         }
 
+        // Slider that lets the user adjust how many of those artworks are downloaded concurrently
+        findPreference<SeekBarPreference>("prefSlider_downloadParallelism")?.let { slider ->
+            slider.updatesContinuously = true
+            slider.summary = sharedPrefs.getInt("prefSlider_downloadParallelism", 3).toString()
+            slider.onPreferenceChangeListener =
+                Preference.OnPreferenceChangeListener { _: Preference?, newValue: Any? ->
+                    slider.summary = (newValue as Int).toString()
+                    true
+                }
+        }
+
+        // Slider that lets the user adjust how many artworks are downloaded ahead of time
+        findPreference<SeekBarPreference>("prefSlider_prefetchBufferSize")?.let { slider ->
+            slider.updatesContinuously = true
+            slider.onPreferenceChangeListener =
+                Preference.OnPreferenceChangeListener { _: Preference?, newValue: Any? ->
+                    if ((newValue as Int) > 0) {
+                        PixivArtWorker.enqueuePrefetch(requireContext())
+                    }
+                    true
+                }
+        }
+
         findPreference<SwitchPreference>("pref_enableNetworkBypass")?.let {
             it.setOnPreferenceChangeListener { _, _ ->
                 OkHttpSingleton.refreshInstance() // Renew a instance with sslSocketFactory by this
@@ -29,11 +29,25 @@ import com.antony.muzei.pixiv.PixivProviderConst.PREFERENCE_PIXIV_ACCESS_TOKEN
 import com.antony.muzei.pixiv.R
 import com.antony.muzei.pixiv.login.LoginActivityWebview
 import com.antony.muzei.pixiv.provider.PixivArtWorker.Companion.enqueueLoad
+import com.antony.muzei.pixiv.provider.TokenRefreshWorker
+import com.antony.muzei.pixiv.provider.WorkerSettings
 import com.google.android.material.snackbar.Snackbar
 import java.util.*
 
 
 class MainPreferenceFragment : PreferenceFragmentCompat() {
+    companion object {
+        // Only shown while the "mixed" update mode is selected
+        private val MIXED_FEED_PREFERENCES = listOf(
+            "prefSlider_mixedWeightFollow",
+            "prefSlider_mixedWeightRecommended",
+            "prefSlider_mixedWeightRanking",
+            "pref_mixedRankingMode",
+            "prefSlider_mixedWeightTag",
+            "prefSlider_mixedWeightArtist"
+        )
+    }
+
     private lateinit var oldUpdateMode: String
     private lateinit var newUpdateMode: String
     private lateinit var oldTag: String
@@ -59,11 +73,14 @@ class MainPreferenceFragment : PreferenceFragmentCompat() {
             Preference.OnPreferenceChangeListener setOnPreferenceChangeListener@{ _: Preference?, newValue: Any ->
                 // User has selected an authenticated feed mode, but has not yet logged in as evidenced
                 // by the lack of an access token
-                if (AUTH_MODES.contains(newValue) && sharedPrefs.getString(
-                        PREFERENCE_PIXIV_ACCESS_TOKEN,
-                        ""
-                    )!!.isEmpty()
-                ) {
+                val loggedIn = sharedPrefs.getString(PREFERENCE_PIXIV_ACCESS_TOKEN, "")!!.isNotEmpty()
+                // The mixed mode can draw from the ranking alone, so it is allowed without a login
+                if (newValue == "mixed" && !loggedIn) {
+                    Snackbar.make(
+                        requireView(), R.string.toast_mixedRankingOnly,
+                        Snackbar.LENGTH_LONG
+                    ).show()
+                } else if (AUTH_MODES.contains(newValue) && !loggedIn) {
                     Snackbar.make(
                         requireView(), R.string.toast_loginFirst,
                         Snackbar.LENGTH_SHORT
@@ -75,11 +92,15 @@ class MainPreferenceFragment : PreferenceFragmentCompat() {
                 val authFeedModeSelected = AUTH_MODES.contains(newValue)
                 findPreference<Preference>("pref_authFilterSelect")?.isVisible =
                     authFeedModeSelected
+                // The mixed mode draws from the ranking as well as the auth feeds, so both filters apply
                 findPreference<Preference>("pref_rankingFilterSelect")?.isVisible =
-                    !authFeedModeSelected
-                findPreference<Preference>("pref_tagSearch")?.isVisible = newValue == "tag_search"
-                findPreference<Preference>("pref_tagLanguage")?.isVisible = newValue == "tag_search"
-                findPreference<Preference>("pref_artistId")?.isVisible = newValue == "artist"
+                    !authFeedModeSelected || newValue == "mixed"
+                findPreference<Preference>("pref_tagSearch")?.isVisible =
+                    newValue == "tag_search" || newValue == "mixed"
+                findPreference<Preference>("pref_tagLanguage")?.isVisible =
+                    newValue == "tag_search" || newValue == "mixed"
+                findPreference<Preference>("pref_artistId")?.isVisible = newValue == "artist" || newValue == "mixed"
+                MIXED_FEED_PREFERENCES.forEach { findPreference<Preference>(it)?.isVisible = newValue == "mixed" }
                 true
             }
 
@@ -160,6 +181,12 @@ class MainPreferenceFragment : PreferenceFragmentCompat() {
                 findPreference<Preference>("pref_artistId")?.let {
                     it.isVisible = true
                 }
+            } else if (updateMode == "mixed") {
+                findPreference<Preference>("pref_rankingFilterSelect")?.isVisible = true
+                findPreference<Preference>("pref_tagSearch")?.isVisible = true
+                findPreference<Preference>("pref_tagLanguage")?.isVisible = true
+                findPreference<Preference>("pref_artistId")?.isVisible = true
+                MIXED_FEED_PREFERENCES.forEach { findPreference<Preference>(it)?.isVisible = true }
             }
         } else {
             findPreference<Preference>("pref_rankingFilterSelect")?.isVisible = true
@@ -265,6 +292,10 @@ class MainPreferenceFragment : PreferenceFragmentCompat() {
             requireContext().getExternalFilesDir(Environment.DIRECTORY_PICTURES)
                 ?.deleteRecursively()
             enqueueLoad(true, context)
+            // The access token is refreshed on demand again if an authenticated mode is picked later
+            if (!WorkerSettings.get(requireContext()).requiresAuth) {
+                TokenRefreshWorker.cancel(requireContext())
+            }
             if (oldUpdateMode != newUpdateMode) {
                 Toast.makeText(context, getString(R.string.toast_newUpdateMode), Toast.LENGTH_SHORT)
                     .show()
@@ -37,21 +37,55 @@ public class HostManager {
         private static final HostManager INSTANCE = new HostManager();
     }
 
-    public String replaceUrl(String before) {
-        // See https://pixiv.cat/reverseproxy.html
-        // Its ISP is Cloudflare
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(PixivMuzei.Companion.getContext().getApplicationContext());
+    // The proxy settings, read from SharedPreferences when first needed and again only after either changes
+    private static class ProxySettings {
+        final boolean usePixivCatProxy;
+        final String pixivProxyHost;
+
+        ProxySettings(boolean usePixivCatProxy, String pixivProxyHost) {
+            this.usePixivCatProxy = usePixivCatProxy;
+            this.pixivProxyHost = pixivProxyHost;
+        }
+    }
 
-        boolean usePixivCatProxy = false;
-        String pixivProxyHost = "";
+    private volatile ProxySettings proxySettings;
+
+    // Held in a field, as a listener registered only as a lambda would be garbage collected and stop firing
+    private final SharedPreferences.OnSharedPreferenceChangeListener proxySettingsInvalidator = (prefs, key) -> {
+        if ("pref_usePixivCat".equals(key) || "pref_pixivProxyHost".equals(key)) {
+            proxySettings = null;
+        }
+    };
+    private boolean listening = false;
 
-        if(PixivMuzei.Companion.getContext() != null){
-            usePixivCatProxy = prefs.getBoolean("pref_usePixivCat",false);
+    private synchronized ProxySettings getProxySettings() {
+        ProxySettings settings = proxySettings;
+        if (settings != null) {
+            return settings;
         }
+        if (PixivMuzei.Companion.getContext() == null) {
+            return new ProxySettings(false, "");
+        }
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(PixivMuzei.Companion.getContext().getApplicationContext());
+        if (!listening) {
+            prefs.registerOnSharedPreferenceChangeListener(proxySettingsInvalidator);
+            listening = true;
+        }
+        settings = new ProxySettings(
+                prefs.getBoolean("pref_usePixivCat", false),
+                prefs.getString("pref_pixivProxyHost", HOST_NEW)
+        );
+        proxySettings = settings;
+        return settings;
+    }
+
+    public String replaceUrl(String before) {
+        // See https://pixiv.cat/reverseproxy.html
+        // Its ISP is Cloudflare
+        ProxySettings settings = getProxySettings();
 
-        if (usePixivCatProxy) {
-            pixivProxyHost = prefs.getString("pref_pixivProxyHost", HOST_NEW);
-            return before.replace(HOST_OLD, pixivProxyHost);
+        if (settings.usePixivCatProxy) {
+            return before.replace(HOST_OLD, settings.pixivProxyHost);
         } else {
             return resizeUrl(before);
         }
@@ -0,0 +1,93 @@
+package com.antony.muzei.pixiv.provider.network.interceptor
+
+import com.antony.muzei.pixiv.provider.exceptions.CorruptFileException
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.SocketPolicy
+import okio.Buffer
+import okio.ByteString.Companion.encodeUtf8
+import okio.ByteString.Companion.toByteString
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
+import org.junit.Before
+import org.junit.Test
+import java.io.IOException
+
+class ImageIntegrityInterceptorTest {
+    private val image = "not really a png, but long enough to be split into several chunks".encodeUtf8()
+
+    private lateinit var server: MockWebServer
+    private lateinit var client: OkHttpClient
+
+    @Before
+    fun setUp() {
+        server = MockWebServer()
+        server.start()
+        client = OkHttpClient.Builder()
+            .addInterceptor(ImageIntegrityInterceptor())
+            .build()
+    }
+
+    @After
+    fun tearDown() {
+        server.shutdown()
+    }
+
+    private fun readImage(): ByteArray =
+        client.newCall(Request.Builder().url(server.url("/image.png")).build()).execute().use {
+            it.body.bytes()
+        }
+
+    @Test
+    fun intactImagePasses() {
+        server.enqueue(
+            MockResponse()
+                .setHeader("Content-Type", "image/png")
+                .setHeader("Content-MD5", image.md5().base64())
+                .setBody(Buffer().write(image))
+        )
+
+        assertEquals(image, readImage().toByteString())
+    }
+
+    @Test
+    fun checksumMismatchIsCorrupt() {
+        server.enqueue(
+            MockResponse()
+                .setHeader("Content-Type", "image/png")
+                .setHeader("Content-MD5", "something else".encodeUtf8().md5().base64())
+                .setBody(Buffer().write(image))
+        )
+
+        assertThrows(CorruptFileException::class.java) { readImage() }
+    }
+
+    // A chunked body is framed by its chunks, so only the interceptor notices it falls short of Content-Length
+    @Test
+    fun lengthMismatchIsCorrupt() {
+        server.enqueue(
+            MockResponse()
+                .setHeader("Content-Type", "image/png")
+                .setChunkedBody(Buffer().write(image), 16)
+                .addHeader("Content-Length", image.size + 100)
+        )
+
+        assertThrows(CorruptFileException::class.java) { readImage() }
+    }
+
+    // What ResumableDownload keeps a .part file for
+    @Test
+    fun connectionDroppedMidBodyFails() {
+        server.enqueue(
+            MockResponse()
+                .setHeader("Content-Type", "image/png")
+                .setBody(Buffer().write(image))
+                .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY)
+        )
+
+        assertThrows(IOException::class.java) { readImage() }
+    }
+}